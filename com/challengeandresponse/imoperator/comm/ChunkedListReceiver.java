@@ -0,0 +1,274 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMListChunk;
+
+/**
+ * Reassembles lists sent by a ChunkedListSender. Bind it to the connection as a PacketListener and
+ * PacketFilter (it accepts only MMListChunks). When the first chunk of a transfer arrives, the Handler
+ * is run on the executor with a Transfer: an Iterator over the transfer's elements that yields them as
+ * their chunks arrive, blocking for the next chunk when it has to. The whole list is never held.
+ * <p>A chunk is acknowledged when the Transfer moves on to it, not when it arrives, so the sender
+ * can't get more than its window ahead of the consumer. The handler ties up an executor thread for as
+ * long as the transfer lasts, so don't run it on the thread that delivers packets.</p>
+ * <p>Chunks may arrive out of order (e.g. from a listener pool without per-sender ordering): they are
+ * put back in order by sequence number.</p>
+ *
+ * @author jim
+ *
+ */
+public class ChunkedListReceiver
+implements PacketListener, PacketFilter {
+
+	public static final long DEFAULT_STALL_TIMEOUT = 60000L; // msec
+
+	/**
+	 * Consumes transfers
+	 */
+	public interface Handler {
+		/**
+		 * Called on the executor when a transfer starts. Read the transfer to the end (or until it throws).
+		 * If this returns before then, the rest of the transfer is not acknowledged, and the sender times out.
+		 * @param transfer the elements as they arrive
+		 */
+		public void transferStarted(Transfer transfer);
+	}
+
+	/**
+	 * The elements of one transfer, in order, as they arrive. Read it from one thread only.
+	 * hasNext() and next() throw an IllegalStateException if the sender aborts the transfer, or no chunk
+	 * arrives for the stall timeout.
+	 */
+	public class Transfer
+	implements Iterator <Object> {
+
+		private final String key;
+		private final String from;
+		private final String transferID;
+		private final TreeMap <Integer, MMListChunk <?>> arrived; // guarded by this
+		private long lastArrival; // guarded by this
+		private boolean started; // guarded by this
+		private int nextSeq;
+		private Iterator <?> current;
+		private boolean ended;
+		private int count;
+
+		private Transfer(String key, String from, String transferID) {
+			this.key = key;
+			this.from = from;
+			this.transferID = transferID;
+			this.arrived = new TreeMap <Integer, MMListChunk <?>> ();
+			this.lastArrival = System.currentTimeMillis();
+			this.started = false;
+			this.nextSeq = 0;
+			this.current = Collections.emptyIterator();
+			this.ended = false;
+			this.count = 0;
+		}
+
+		public String getFrom() {
+			return from;
+		}
+
+		public String getTransferID() {
+			return transferID;
+		}
+
+		/**
+		 * @return the number of elements read so far
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		public boolean hasNext() {
+			while (! current.hasNext()) {
+				if (ended)
+					return false;
+				MMListChunk <?> chunk = take();
+				acknowledge(chunk);
+				if (chunk.getItems() != null)
+					current = chunk.getItems().iterator();
+				if (chunk.isLast()) {
+					ended = true;
+					transfers.remove(key, this);
+				}
+			}
+			return true;
+		}
+
+		public Object next() {
+			if (! hasNext())
+				throw new NoSuchElementException();
+			count++;
+			return current.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * @return true the first time it is called
+		 */
+		private synchronized boolean start() {
+			if (started)
+				return false;
+			started = true;
+			return true;
+		}
+
+		/**
+		 * @return true if no handler was started for this transfer, and it hasn't heard from the sender in the stall timeout
+		 */
+		private synchronized boolean isOrphaned() {
+			return (! started) && ((System.currentTimeMillis() - lastArrival) > stallTimeout);
+		}
+
+		private synchronized void add(MMListChunk <?> chunk) {
+			arrived.put(Integer.valueOf(chunk.getSeq()), chunk);
+			lastArrival = System.currentTimeMillis();
+			notifyAll();
+		}
+
+		/**
+		 * Wait for the next chunk in sequence
+		 */
+		private synchronized MMListChunk <?> take() {
+			while (true) {
+				MMListChunk <?> chunk = arrived.remove(Integer.valueOf(nextSeq));
+				if (chunk != null) {
+					nextSeq++;
+					if (chunk.isAborted())
+						fail("aborted by the sender");
+					return chunk;
+				}
+				// an abort may overtake chunks that will now never come
+				if ((! arrived.isEmpty()) && arrived.lastEntry().getValue().isAborted())
+					fail("aborted by the sender");
+				long wait = (lastArrival + stallTimeout) - System.currentTimeMillis();
+				if (wait <= 0)
+					fail("stalled waiting for chunk "+nextSeq);
+				try {
+					wait(wait);
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					fail("interrupted waiting for chunk "+nextSeq);
+				}
+			}
+		}
+
+		private void fail(String why) {
+			ended = true;
+			transfers.remove(key, this);
+			if (verbose)
+				System.out.println("ChunkedListReceiver transfer "+transferID+" from "+from+" "+why);
+			throw new IllegalStateException("Transfer "+transferID+" from "+from+" "+why);
+		}
+	}
+
+	private final SimpleXMPPConnection connection;
+	private final Executor executor;
+	private final Handler handler;
+	private final ConcurrentHashMap <String, Transfer> transfers;
+	private volatile long stallTimeout;
+	private boolean verbose = false;
+
+	/**
+	 * @param connection the connection to acknowledge chunks on
+	 * @param executor runs the handler, once per transfer
+	 * @param handler consumes the transfers
+	 */
+	public ChunkedListReceiver(SimpleXMPPConnection connection, Executor executor, Handler handler) {
+		this.connection = connection;
+		this.executor = executor;
+		this.handler = handler;
+		this.transfers = new ConcurrentHashMap <String, Transfer> ();
+		this.stallTimeout = DEFAULT_STALL_TIMEOUT;
+	}
+
+	/**
+	 * @param timeout msec without a new chunk after which a transfer is given up
+	 */
+	public void setStallTimeout(long timeout) {
+		this.stallTimeout = timeout;
+	}
+
+	public void setVerbose(boolean setting) {
+		verbose = setting;
+	}
+
+	/**
+	 * @return the number of transfers under way
+	 */
+	public int getActiveTransferCount() {
+		return transfers.size();
+	}
+
+
+	public boolean accept(Packet packet) {
+		return (packet instanceof MMListChunk) && (((IQ) packet).getType() == IQ.Type.SET);
+	}
+
+	public void processPacket(Packet packet) {
+		MMListChunk <?> chunk = (MMListChunk <?>) packet;
+		String from = packet.getFrom();
+		String transferID = chunk.getTransferID();
+		String key = from+" "+transferID;
+		Transfer transfer = transfers.get(key);
+		if ((transfer == null) && chunk.isAborted()) // ended here already, or never started
+			return;
+		if (transfer == null) {
+			Transfer newTransfer = new Transfer(key, from, transferID);
+			transfer = transfers.putIfAbsent(key, newTransfer);
+			if (transfer == null) {
+				transfer = newTransfer;
+				sweep();
+			}
+		}
+		transfer.add(chunk);
+		// the handler starts with the first chunk, so chunks that straggle in after a transfer is over don't start another
+		if ((chunk.getSeq() == 0) && transfer.start()) {
+			final Transfer started = transfer;
+			if (verbose)
+				System.out.println("ChunkedListReceiver transfer "+transferID+" from "+from+" started");
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						handler.transferStarted(started);
+					}
+					finally { // the handler may have stopped reading early: forget the rest
+						transfers.remove(started.key, started);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Forget transfers whose first chunk never came
+	 */
+	private void sweep() {
+		for (Transfer t : transfers.values()) {
+			if (t.isOrphaned())
+				transfers.remove(t.key, t);
+		}
+	}
+
+	private void acknowledge(MMListChunk <?> chunk) {
+		connection.sendNoExceptionIQ(chunk.getFrom(), new ResultIQ(chunk.getPacketID()), false);
+	}
+
+}
@@ -0,0 +1,181 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.jivesoftware.smack.packet.IQ;
+
+import com.challengeandresponse.imoperator.decorations.OIDGenerator;
+import com.challengeandresponse.imoperator.m2mobjects.MMList;
+import com.challengeandresponse.imoperator.m2mobjects.MMListChunk;
+
+/**
+ * Sends a large list as a series of MMListChunk IQs of at most chunkSize elements each, instead of
+ * one IQ holding the whole list, so neither end ever builds the whole list as XML and no stanza
+ * runs into the server's size limit. The far end reassembles it with a ChunkedListReceiver.
+ * <p>Each chunk is acknowledged by an IQ result, and at most window chunks are sent ahead of
+ * the acknowledgements. The receiver acknowledges a chunk when its consumer starts reading it,
+ * so a slow consumer slows the sender down, and neither end holds more than window chunks at once.
+ * The elements can come from an Iterator, so the sender need not hold the list at all.</p>
+ * <p>MMListChunk must have a UniversalIQProvider bound at the receiver, like any other UniversalIQ.</p>
+ *
+ * @author jim
+ *
+ */
+public class ChunkedListSender {
+
+	public static final int DEFAULT_CHUNK_SIZE = 500; // elements
+	public static final int DEFAULT_WINDOW = 4; // chunks
+	public static final long DEFAULT_ACK_TIMEOUT = 30000L; // msec
+
+	private final SimpleXMPPConnection connection;
+	private volatile int chunkSize;
+	private volatile int window;
+	private volatile long ackTimeout;
+	private boolean verbose = false;
+
+	/**
+	 * @param connection the connection to send on
+	 */
+	public ChunkedListSender(SimpleXMPPConnection connection) {
+		this.connection = connection;
+		this.chunkSize = DEFAULT_CHUNK_SIZE;
+		this.window = DEFAULT_WINDOW;
+		this.ackTimeout = DEFAULT_ACK_TIMEOUT;
+	}
+
+	/**
+	 * @param size the most elements to put in one chunk
+	 */
+	public void setChunkSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Chunk size must be at least 1");
+		this.chunkSize = size;
+	}
+
+	/**
+	 * @param chunks the most chunks to have sent but not yet acknowledged
+	 */
+	public void setWindow(int chunks) {
+		if (chunks < 1)
+			throw new IllegalArgumentException("Window must be at least 1 chunk");
+		this.window = chunks;
+	}
+
+	/**
+	 * @param timeout msec to wait for each acknowledgement. This includes the time the receiver's consumer takes to get to the chunk
+	 */
+	public void setAckTimeout(long timeout) {
+		this.ackTimeout = timeout;
+	}
+
+	public void setVerbose(boolean setting) {
+		verbose = setting;
+	}
+
+
+	/**
+	 * Send list whole if it fits in one chunk, otherwise in chunks. The receiver must handle both:
+	 * the MMList as usual, and the chunks with a ChunkedListReceiver.
+	 * @param to the addressee
+	 * @param list the list to send
+	 * @return the number of elements sent
+	 * @throws SimpleXMPPException if sending failed, or the receiver refused a chunk
+	 * @throws TimeoutException if a chunk wasn't acknowledged in time
+	 */
+	public <T> int sendList(String to, MMList <T> list)
+	throws SimpleXMPPException, TimeoutException {
+		List <T> l = list.getList();
+		if ((l == null) || (l.size() <= chunkSize)) {
+			connection.sendIQ(to, list, false);
+			return (l != null) ? l.size() : 0;
+		}
+		return send(to, l.iterator());
+	}
+
+	/**
+	 * Send the elements in chunks, blocking until the last one is acknowledged. If anything goes
+	 * wrong, the receiver is told the transfer is aborted.
+	 * @param to the addressee
+	 * @param elements the elements, read one chunk ahead of what has been sent
+	 * @return the number of elements sent
+	 * @throws SimpleXMPPException if sending failed, or the receiver refused a chunk
+	 * @throws TimeoutException if a chunk wasn't acknowledged in time
+	 */
+	public <T> int send(String to, Iterator <T> elements)
+	throws SimpleXMPPException, TimeoutException {
+		String transferID = OIDGenerator.nextOID("chunks");
+		ArrayDeque <CompletableFuture <IQ>> inFlight = new ArrayDeque <CompletableFuture <IQ>> ();
+		int size = chunkSize;
+		int seq = 0;
+		int count = 0;
+		boolean last = false;
+		try {
+			while (! last) {
+				List <T> items = new ArrayList <T> (size);
+				while ((items.size() < size) && elements.hasNext())
+					items.add(elements.next());
+				last = (! elements.hasNext());
+				while (inFlight.size() >= window)
+					awaitAck(inFlight.removeFirst());
+				inFlight.addLast(connection.sendIQAsync(to, new MMListChunk <T> (transferID, seq++, last, items), false, ackTimeout));
+				count += items.size();
+			}
+			while (! inFlight.isEmpty())
+				awaitAck(inFlight.removeFirst());
+		}
+		catch (SimpleXMPPException sxe) {
+			abort(to, transferID, seq, inFlight);
+			throw sxe;
+		}
+		catch (TimeoutException te) {
+			abort(to, transferID, seq, inFlight);
+			throw te;
+		}
+		catch (RuntimeException re) { // from the iterator
+			abort(to, transferID, seq, inFlight);
+			throw re;
+		}
+		if (verbose)
+			System.out.println("ChunkedListSender sent "+count+" elements in "+seq+" chunks to "+to+" as "+transferID);
+		return count;
+	}
+
+	private void awaitAck(CompletableFuture <IQ> ack)
+	throws SimpleXMPPException, TimeoutException {
+		IQ reply;
+		try {
+			reply = ack.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new SimpleXMPPException("ChunkedListSender interrupted while waiting for an acknowledgement");
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof TimeoutException)
+				throw new TimeoutException("Chunk not acknowledged within "+ackTimeout+" msec");
+			if (cause instanceof SimpleXMPPException)
+				throw (SimpleXMPPException) cause;
+			throw new SimpleXMPPException("ChunkedListSender "+cause);
+		}
+		if (reply.getType() == IQ.Type.ERROR)
+			throw new SimpleXMPPException("Chunk refused: "+reply.getError());
+	}
+
+	/**
+	 * Tell the receiver to give up on the transfer, and stop waiting for acknowledgements
+	 */
+	private void abort(String to, String transferID, int seq, ArrayDeque <CompletableFuture <IQ>> inFlight) {
+		for (CompletableFuture <IQ> ack : inFlight)
+			ack.cancel(false);
+		connection.sendNoExceptionIQ(to, MMListChunk.abort(transferID, seq), false);
+		if (verbose)
+			System.out.println("ChunkedListSender aborted "+transferID+" to "+to+" after "+seq+" chunks");
+	}
+
+}
@@ -1,7 +1,11 @@
 package com.challengeandresponse.imoperator.comm;
 
-import java.util.Iterator;
-import java.util.Vector;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.Packet;
@@ -16,80 +20,246 @@ import org.jivesoftware.smack.packet.Packet;
  * Similarly, if no include filters are set, but at least one exclude filter is
  * set, accept will return true provided there are no matching exclude filters,
  * and false if any exclude filter matches.
- * 
+ * <p>The filter sets are immutable snapshots, replaced (copy-on-write) when a filter is added
+ * or removed, so accept() takes no locks.</p>
+ * <p>Filters are tried in the order they were added. Since the include filters stop at the first match
+ * and the exclude filters stop at the first match, the order they are tried in doesn't change
+ * the result, only how many are called. So with setAdaptive(true), a sample of accept() calls records how
+ * often each filter matches and how long it takes, and every so often each set is re-sorted to try first the
+ * filters most likely to end the search per unit of time. Turn that on only if no filter depends on
+ * being called in the order they were added, or on being called at all (no logging or stateful filters).</p>
+ *
  * @author jim
  *
  */
+/*
+ * REVISION HISTORY
+ * 2026-10-17 Lock-free snapshots instead of Vectors, and filters re-ordered by their measured match rate and cost
+ * 2026-10-17 Re-ordering is opt-in (setAdaptive(true)), so existing filters keep their order
+ */
 public class CompositeFilter implements PacketFilter {
 
-	private Vector <PacketFilter> includeFilters;
-	private Vector <PacketFilter> excludeFilters;
+	public static final int SAMPLE_RATE = 16; // one accept() call in this many is measured
+	public static final int REORDER_INTERVAL = 64; // re-sort after this many measured calls
+
+	private static class Slot {
+		final PacketFilter filter;
+		final long added; // when it was added, relative to the others
+		// counted over the measured calls since the last re-sort
+		final LongAdder calls = new LongAdder();
+		final LongAdder hits = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		// smoothed across re-sorts: the chance of a match divided by the cost of a call
+		volatile double score = 0.0;
+
+		Slot(PacketFilter filter, long added) {
+			this.filter = filter;
+			this.added = added;
+		}
+
+		public String toString() {
+			return String.valueOf(filter);
+		}
+	}
+
+	private static class Snapshot {
+		final Slot[] include;
+		final Slot[] exclude;
+		Snapshot(Slot[] include, Slot[] exclude) {
+			this.include = include;
+			this.exclude = exclude;
+		}
+	}
+
+	private static final Comparator <Slot> AS_ADDED = new Comparator <Slot> () {
+		public int compare(Slot a, Slot b) {
+			return Long.compare(a.added, b.added);
+		}
+	};
+
+	private static final Comparator <Slot> BEST_FIRST = new Comparator <Slot> () {
+		public int compare(Slot a, Slot b) {
+			return Double.compare(b.score, a.score);
+		}
+	};
+
+	private final AtomicReference <Snapshot> filters;
+	private final AtomicLong measuredCalls;
+	private final LongAdder measuredFilterCalls; // filters called during the measured accept()s
+	private final AtomicLong additions;
 
 	private boolean verbose = false;
+	private volatile boolean adaptive = false;
 
 	public CompositeFilter() {
-		includeFilters = new Vector <PacketFilter> ();
-		excludeFilters = new Vector <PacketFilter> ();
+		filters = new AtomicReference <Snapshot> (new Snapshot(new Slot[0], new Slot[0]));
+		measuredCalls = new AtomicLong(0);
+		measuredFilterCalls = new LongAdder();
+		additions = new AtomicLong(0);
 	}
 
 	public void setVerbose(boolean setting) {
 		verbose = setting;
 	}
 
+	/**
+	 * @param setting true to re-order the filters by their measured match rate and cost, for filters that
+	 * don't care in what order or whether they are called. false (the default) to always try them in the order
+	 * they were added: turning re-ordering off puts them back in that order
+	 */
+	public void setAdaptive(boolean setting) {
+		adaptive = setting;
+		if (setting)
+			return;
+		Snapshot s;
+		Slot[] include;
+		Slot[] exclude;
+		do {
+			s = filters.get();
+			include = s.include.clone();
+			exclude = s.exclude.clone();
+			Arrays.sort(include, AS_ADDED);
+			Arrays.sort(exclude, AS_ADDED);
+		} while (! filters.compareAndSet(s, new Snapshot(include, exclude)));
+	}
+
 	public boolean accept(Packet packet) {
-		if (verbose)
-			System.out.println("CompositeFilter.accept() examining packet: "+packet+" "+packet.getPacketID());
+		Snapshot s = filters.get();
+		boolean measure = adaptive && (ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0);
+		StringBuilder log = verbose ? new StringBuilder("CompositeFilter.accept() examining packet: ").append(packet).append(" ").append(packet.getPacketID()).append("\n") : null;
+		int called = 0;
 
-		boolean result;
-		
 		// if no include filter is set, the packet gets a default "accept"
 		// otherwise, we search the include filters for an accepting filter
-		if (includeFilters.size() > 0)
-			result = false;
-		else
-			result = true;
+		boolean result = (s.include.length == 0);
 
 		// first process the include filters
-		Iterator <PacketFilter> it = includeFilters.iterator();
-		while (it.hasNext() && (! result)) {
-			PacketFilter pf = it.next();
-			if (verbose)
-				System.out.println("testing for include: "+pf);
-			result = pf.accept(packet);
+		for (int i = 0; (i < s.include.length) && (! result); i++) {
+			if (log != null)
+				log.append("testing for include: ").append(s.include[i]).append("\n");
+			result = call(s.include[i], packet, measure);
+			called++;
 		}
 
 		// otherwise, check all the EXCLUDE filters, at least until one matches
-		it = excludeFilters.iterator();
-		while (it.hasNext() && result) {
-			PacketFilter pf = it.next();
-			if (verbose)
-				System.out.println("testing for exclude: "+pf);
-			result = (! pf.accept(packet));
+		for (int i = 0; (i < s.exclude.length) && result; i++) {
+			if (log != null)
+				log.append("testing for exclude: ").append(s.exclude[i]).append("\n");
+			result = (! call(s.exclude[i], packet, measure));
+			called++;
+		}
+
+		if (log != null)
+			System.out.println(log.append("accept() returning ").append(result));
+		if (measure) {
+			measuredFilterCalls.add(called);
+			if ((measuredCalls.incrementAndGet() % REORDER_INTERVAL) == 0)
+				reorder(s);
 		}
-		if (verbose)
-			System.out.println("accept() returning "+result);
 		return result;
 	}
 
+	private boolean call(Slot slot, Packet packet, boolean measure) {
+		if (! measure)
+			return slot.filter.accept(packet);
+		long start = System.nanoTime();
+		boolean match = slot.filter.accept(packet);
+		slot.nanos.add(System.nanoTime() - start);
+		slot.calls.increment();
+		if (match)
+			slot.hits.increment();
+		return match;
+	}
+
+	/**
+	 * Re-score the filters in s from the calls measured since the last re-sort, and publish them re-sorted
+	 * if the filter set hasn't changed meanwhile (if it has, the next re-sort will catch up)
+	 */
+	private void reorder(Snapshot s) {
+		rescore(s.include);
+		rescore(s.exclude);
+		Slot[] include = s.include.clone();
+		Slot[] exclude = s.exclude.clone();
+		Arrays.sort(include, BEST_FIRST);
+		Arrays.sort(exclude, BEST_FIRST);
+		if (adaptive && filters.compareAndSet(s, new Snapshot(include, exclude)) && verbose)
+			System.out.println("CompositeFilter re-ordered:\n"+this);
+	}
+
+	private static void rescore(Slot[] slots) {
+		for (Slot slot : slots) {
+			long calls = slot.calls.sumThenReset();
+			long hits = slot.hits.sumThenReset();
+			long nanos = slot.nanos.sumThenReset();
+			if (calls == 0)
+				continue; // never reached: keep the old score
+			double matchRate = (hits + 1.0) / (calls + 2.0);
+			double cost = Math.max(1.0, (double) nanos / calls);
+			slot.score = (slot.score == 0.0) ? (matchRate / cost) : ((slot.score + (matchRate / cost)) / 2.0);
+		}
+	}
+
 
 	public void addExcludeFilter(PacketFilter pf) {
-		excludeFilters.add(pf);
+		Snapshot s;
+		do {
+			s = filters.get();
+		} while (! filters.compareAndSet(s, new Snapshot(s.include, append(s.exclude, pf, additions.getAndIncrement()))));
 	}
 
 	public void addIncludeFilter(PacketFilter pf) {
-		includeFilters.add(pf);
+		Snapshot s;
+		do {
+			s = filters.get();
+		} while (! filters.compareAndSet(s, new Snapshot(append(s.include, pf, additions.getAndIncrement()), s.exclude)));
 	}
 
 	public void removeExcludeFilter(PacketFilter pf) {
-		excludeFilters.remove(pf);
+		Snapshot s;
+		do {
+			s = filters.get();
+		} while (! filters.compareAndSet(s, new Snapshot(s.include, remove(s.exclude, pf))));
 	}
 
 	public void removeIncludeFilter(PacketFilter pf) {
-		includeFilters.remove(pf);
+		Snapshot s;
+		do {
+			s = filters.get();
+		} while (! filters.compareAndSet(s, new Snapshot(remove(s.include, pf), s.exclude)));
+	}
+
+	private static Slot[] append(Slot[] slots, PacketFilter pf, long added) {
+		Slot[] result = Arrays.copyOf(slots, slots.length + 1);
+		result[slots.length] = new Slot(pf, added);
+		return result;
+	}
+
+	private static Slot[] remove(Slot[] slots, PacketFilter pf) {
+		for (int i = 0; i < slots.length; i++) {
+			if (slots[i].filter.equals(pf)) {
+				Slot[] result = new Slot[slots.length - 1];
+				System.arraycopy(slots, 0, result, 0, i);
+				System.arraycopy(slots, i + 1, result, i, result.length - i);
+				return result;
+			}
+		}
+		return slots;
+	}
+
+	/**
+	 * @return the average number of filters called per accept(), over the measured calls
+	 */
+	public double getAverageFilterCalls() {
+		long calls = measuredCalls.get();
+		return (calls == 0) ? 0.0 : ((double) measuredFilterCalls.sum() / calls);
 	}
 
+	/**
+	 * @return the filters in the order they are currently tried
+	 */
 	public String toString() {
-		return "include filters:\n"+includeFilters+"\nexclude filters:\n"+excludeFilters;
+		Snapshot s = filters.get();
+		return "include filters:\n"+Arrays.toString(s.include)+"\nexclude filters:\n"+Arrays.toString(s.exclude);
 	}
 
 }
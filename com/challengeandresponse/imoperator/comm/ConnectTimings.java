@@ -0,0 +1,81 @@
+package com.challengeandresponse.imoperator.comm;
+
+/**
+ * Where the time went during one SimpleXMPPConnection.secureConnect() call.
+ * All values are msec. A phase that hasn't finished (e.g. a roster still loading in the background)
+ * reads -1.
+ *
+ * @author jim
+ *
+ */
+public class ConnectTimings {
+
+	private volatile long connectMillis = -1;
+	private volatile long tlsMillis = -1;
+	private volatile long loginMillis = -1;
+	private volatile long rosterMillis = -1;
+	private volatile long totalMillis = -1;
+
+	ConnectTimings() {
+	}
+
+	/**
+	 * @return msec to open the socket and exchange stream headers
+	 */
+	public long getConnectMillis() {
+		return connectMillis;
+	}
+
+	/**
+	 * @return msec from stream open until TLS was established
+	 */
+	public long getTLSMillis() {
+		return tlsMillis;
+	}
+
+	/**
+	 * @return msec to authenticate and bind the resource
+	 */
+	public long getLoginMillis() {
+		return loginMillis;
+	}
+
+	/**
+	 * @return msec to receive the roster, counted from the end of login
+	 */
+	public long getRosterMillis() {
+		return rosterMillis;
+	}
+
+	/**
+	 * @return msec until secureConnect() returned. With a background roster load, this does not include the roster
+	 */
+	public long getTotalMillis() {
+		return totalMillis;
+	}
+
+	void setConnectMillis(long connectMillis) {
+		this.connectMillis = connectMillis;
+	}
+
+	void setTLSMillis(long tlsMillis) {
+		this.tlsMillis = tlsMillis;
+	}
+
+	void setLoginMillis(long loginMillis) {
+		this.loginMillis = loginMillis;
+	}
+
+	void setRosterMillis(long rosterMillis) {
+		this.rosterMillis = rosterMillis;
+	}
+
+	void setTotalMillis(long totalMillis) {
+		this.totalMillis = totalMillis;
+	}
+
+	public String toString() {
+		return "connect:"+connectMillis+" tls:"+tlsMillis+" login:"+loginMillis+" roster:"+rosterMillis+" total:"+totalMillis+" (msec)";
+	}
+
+}
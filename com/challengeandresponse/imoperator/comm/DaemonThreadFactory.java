@@ -0,0 +1,33 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes named daemon threads for the comm package's background work (timers,
+ * housekeeping), so that a connection that is never disconnected can't keep the JVM alive.
+ * 
+ * @author jim
+ *
+ */
+class DaemonThreadFactory
+implements ThreadFactory {
+
+	private final String namePrefix;
+	private final AtomicInteger threadCount;
+
+	/**
+	 * @param namePrefix threads are named namePrefix-1, namePrefix-2 ...
+	 */
+	DaemonThreadFactory(String namePrefix) {
+		this.namePrefix = namePrefix;
+		this.threadCount = new AtomicInteger(0);
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, namePrefix+"-"+threadCount.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+
+}
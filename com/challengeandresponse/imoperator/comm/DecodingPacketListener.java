@@ -0,0 +1,79 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * Wraps a PacketListener so that the payloads of lazily decoded UniversalIQs (see UniversalIQProvider.setLazy())
+ * are unmarshalled on an Executor's threads, instead of on Smack's thread, before the listener gets them.
+ * Smack's reader thread then only captures each payload and its headers, and a large MMList no longer holds up
+ * every stanza behind it. Packets are delivered as their decoding completes, so they may reach the listener
+ * in a different order than they arrived. Packets that need no decoding are delivered straight away.
+ * <p>A packet whose payload fails to decode is dropped, and counted (see getDecodeFailures()).</p>
+ *
+ * @author jim
+ *
+ */
+public class DecodingPacketListener
+implements PacketListener {
+
+	private final PacketListener listener;
+	private final Executor executor;
+	private final AtomicLong decodeFailures;
+	private boolean verbose = false;
+
+	/**
+	 * @param listener the listener to deliver decoded packets to. Called on the executor's threads, so it must be thread safe
+	 * @param executor decodes the payloads, e.g. a fixed pool with one thread per core
+	 */
+	public DecodingPacketListener(PacketListener listener, Executor executor) {
+		this.listener = listener;
+		this.executor = executor;
+		this.decodeFailures = new AtomicLong(0);
+	}
+
+	public void setVerbose(boolean setting) {
+		this.verbose = setting;
+	}
+
+	public void processPacket(final Packet packet) {
+		if ((! (packet instanceof UniversalIQ)) || ((UniversalIQ) packet).isMaterialized()) {
+			listener.processPacket(packet);
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					((UniversalIQ) packet).materialize();
+				}
+				catch (RuntimeException re) {
+					decodeFailures.incrementAndGet();
+					if (verbose)
+						System.out.println("DecodingPacketListener could not decode packet "+packet.getPacketID()+" from "+packet.getFrom()+": "+re);
+					return;
+				}
+				listener.processPacket(packet);
+			}
+		});
+	}
+
+	/**
+	 * @return the wrapped listener
+	 */
+	public PacketListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @return the number of packets dropped because their payloads could not be decoded
+	 */
+	public long getDecodeFailures() {
+		return decodeFailures.get();
+	}
+
+}
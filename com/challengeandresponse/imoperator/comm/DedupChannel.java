@@ -0,0 +1,106 @@
+package com.challengeandresponse.imoperator.comm;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.XMPPError;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMDedupFetch;
+import com.challengeandresponse.imoperator.m2mobjects.MMDedupHave;
+import com.challengeandresponse.imoperator.m2mobjects.MMError;
+import com.challengeandresponse.imoperator.universaliq.DedupPayloadCodec;
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * The traffic that lets a DedupPayloadCodec send references instead of payloads, on one connection. Bind it to the
+ * connection as a PacketListener and PacketFilter. It:
+ * <ul>
+ * <li>confirms to their senders the payloads that arrive in full, with an MMDedupHave</li>
+ * <li>records the confirmations that arrive, so the codec can refer to those payloads</li>
+ * <li>answers MMDedupFetch requests from the codec's cache of what it sent</li>
+ * <li>fetches, for the codec, the payloads of references that miss its cache</li>
+ * </ul>
+ * It only reads the packets it doesn't own: the other listeners still get the IQs whose payloads it confirms.
+ * MMDedupHave and MMDedupFetch must have a UniversalIQProvider bound at both ends, like any other UniversalIQ.
+ *
+ * @author jim
+ *
+ */
+public class DedupChannel
+implements PacketListener, PacketFilter, DedupPayloadCodec.Fetcher {
+
+	public static final long DEFAULT_FETCH_TIMEOUT = 30000L; // msec
+
+	private final SimpleXMPPConnection connection;
+	private final DedupPayloadCodec codec;
+	private volatile long fetchTimeout;
+	private boolean verbose = false;
+
+	/**
+	 * Serve codec on connection, and make this its Fetcher
+	 * @param connection the connection
+	 * @param codec the codec, as registered with PayloadCodecRegistry
+	 */
+	public DedupChannel(SimpleXMPPConnection connection, DedupPayloadCodec codec) {
+		this.connection = connection;
+		this.codec = codec;
+		this.fetchTimeout = DEFAULT_FETCH_TIMEOUT;
+		codec.setFetcher(this);
+	}
+
+	/**
+	 * @param timeout msec to wait for a fetched payload
+	 */
+	public void setFetchTimeout(long timeout) {
+		this.fetchTimeout = timeout;
+	}
+
+	public void setVerbose(boolean setting) {
+		verbose = setting;
+	}
+
+
+	public boolean accept(Packet packet) {
+		if (packet instanceof MMDedupHave)
+			return (((IQ) packet).getType() == IQ.Type.SET);
+		if (packet instanceof MMDedupFetch)
+			return (((IQ) packet).getType() == IQ.Type.GET);
+		return (packet instanceof UniversalIQ) && (((UniversalIQ) packet).getDedupHash() != null);
+	}
+
+	public void processPacket(Packet packet) {
+		String from = packet.getFrom();
+		if (packet instanceof MMDedupHave) {
+			codec.confirm(from, ((MMDedupHave) packet).getHash());
+			connection.sendNoExceptionIQ(from, new ResultIQ(packet.getPacketID()), false);
+		}
+		else if (packet instanceof MMDedupFetch) {
+			String hash = ((MMDedupFetch) packet).getHash();
+			String body = codec.getSentBody(hash);
+			if (verbose)
+				System.out.println("DedupChannel "+from+" fetching "+hash+((body == null) ? ", which is no longer held" : ""));
+			if (body != null)
+				connection.sendNoExceptionIQ(from, MMDedupFetch.response(hash, body, packet.getPacketID()), false);
+			else
+				connection.sendNoExceptionIQ(from, new MMError(XMPPError.Condition.item_not_found, "Payload "+hash+" is no longer held", packet.getPacketID()), false);
+		}
+		else { // a payload that arrived in full: tell its sender it can refer to it from now on
+			connection.sendNoExceptionIQ(from, new MMDedupHave(((UniversalIQ) packet).getDedupHash()), false);
+		}
+	}
+
+	/**
+	 * Ask from for the payload with this hash, and wait for it. Called by the codec, from materialize()
+	 */
+	public String fetch(String from, String hash)
+	throws Exception {
+		if (verbose)
+			System.out.println("DedupChannel fetching "+hash+" from "+from);
+		IQ reply = connection.sendIQgetIQ(from, MMDedupFetch.request(hash), false, fetchTimeout);
+		if (! (reply instanceof MMDedupFetch))
+			throw new SimpleXMPPException("Could not fetch payload "+hash+" from "+from+": "+reply.getError());
+		return ((MMDedupFetch) reply).getBody();
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * Field access shared by DeltaSyncSender and DeltaSyncReceiver: the fields of a class that make up its
+ * state (all but static and transient ones, as XStream sees it), and a way to tell whether one has changed
+ *
+ * @author jim
+ *
+ */
+final class DeltaFields {
+
+	private static final ClassValue <Field[]> fields = new ClassValue <Field[]> () {
+		protected Field[] computeValue(Class <?> type) {
+			ArrayList <Field> result = new ArrayList <Field> ();
+			for (Class <?> c = type; (c != null) && (c != Object.class); c = c.getSuperclass()) {
+				for (Field f : c.getDeclaredFields()) {
+					int modifiers = f.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || f.isSynthetic())
+						continue;
+					f.setAccessible(true);
+					result.add(f);
+				}
+			}
+			return result.toArray(new Field[result.size()]);
+		}
+	};
+
+	private DeltaFields() {
+	}
+
+	/**
+	 * @return the state fields of type, accessible. Fields hidden by a subclass's field of the same name are included, but deltas name fields, so don't hide them
+	 */
+	static Field[] of(Class <?> type) {
+		return fields.get(type);
+	}
+
+	/**
+	 * @return the field of type named name, or null
+	 */
+	static Field named(Class <?> type, String name) {
+		for (Field f : fields.get(type)) {
+			if (f.getName().equals(name))
+				return f;
+		}
+		return null;
+	}
+
+	/**
+	 * @return something that equals() the fingerprint of another value exactly when the two would serialize the same:
+	 * the value itself if it is immutable, otherwise its XML. So a change made inside a List or a nested object is noticed,
+	 * even though the field still holds the same instance.
+	 */
+	static Object fingerprint(Object value) {
+		if ((value == null) || (value instanceof String) || (value instanceof Number) || (value instanceof Boolean)
+				|| (value instanceof Character) || (value instanceof Enum))
+			return value;
+		return UniversalIQ.getXStreamInstance().toXML(value);
+	}
+
+	/**
+	 * @return a new instance of o's class with the same field values, made without running a constructor
+	 */
+	static Object shallowCopy(Object o)
+	throws IllegalAccessException {
+		Object copy = UniversalIQ.getXStreamInstance().getReflectionProvider().newInstance(o.getClass());
+		for (Field f : fields.get(o.getClass()))
+			f.set(copy, f.get(o));
+		return copy;
+	}
+
+}
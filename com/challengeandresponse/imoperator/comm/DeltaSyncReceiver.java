@@ -0,0 +1,171 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.XMPPError;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMError;
+import com.challengeandresponse.imoperator.m2mobjects.MMObjectDelta;
+
+/**
+ * Rebuilds the objects pushed by a DeltaSyncSender. Bind it to the connection as a PacketListener and
+ * PacketFilter (it accepts only MMObjectDeltas). It keeps the latest version of each object by sender and
+ * OID, applies each delta to a copy of it, and passes the result to the Handler.
+ * <p>A delta whose base version isn't the one held (or for an object not held at all) is refused with an
+ * item-not-found error, and the sender falls back to a snapshot.</p>
+ * <p>A push, snapshot or delta, whose version is not above the one held is refused with an unexpected-request
+ * error and not applied. After a timeout the sender's old push and its next one can both be in flight, and
+ * if they arrive out of order the older must not overwrite the newer. Versions only go up for the life of a
+ * DeltaSyncSender, so when a sender restarts, forget it here (forgetCorrespondent(), e.g. on its unavailable presence).</p>
+ *
+ * @author jim
+ *
+ */
+public class DeltaSyncReceiver
+implements PacketListener, PacketFilter {
+
+	/**
+	 * Consumes the rebuilt states
+	 */
+	public interface Handler {
+		/**
+		 * Called on the thread that delivers the packet, once per new version. If pushes of one object are
+		 * delivered on several threads at once, calls can overtake one another: getState() has the newest.
+		 * @param from the sender
+		 * @param oid the object's ID
+		 * @param state the whole new state. A new object for each version, but fields that didn't change
+		 * share their values with the previous version's object
+		 * @param version the version number
+		 */
+		public void stateChanged(String from, String oid, Object state, long version);
+	}
+
+	private static class State {
+		final Object object;
+		final long version;
+		State(Object object, long version) {
+			this.object = object;
+			this.version = version;
+		}
+	}
+
+	private final SimpleXMPPConnection connection;
+	private final Handler handler;
+	private final ConcurrentHashMap <String, State> states;
+	private boolean verbose = false;
+
+	/**
+	 * @param connection the connection to acknowledge pushes on
+	 * @param handler consumes the states
+	 */
+	public DeltaSyncReceiver(SimpleXMPPConnection connection, Handler handler) {
+		this.connection = connection;
+		this.handler = handler;
+		this.states = new ConcurrentHashMap <String, State> ();
+	}
+
+	public void setVerbose(boolean setting) {
+		verbose = setting;
+	}
+
+
+	public boolean accept(Packet packet) {
+		return (packet instanceof MMObjectDelta) && (((IQ) packet).getType() == IQ.Type.SET);
+	}
+
+	public void processPacket(Packet packet) {
+		final MMObjectDelta <?> push = (MMObjectDelta <?>) packet;
+		String from = packet.getFrom();
+		final State[] applied = new State[1];
+		final XMPPError.Condition[] refusal = new XMPPError.Condition[1];
+		final String[] reason = new String[1];
+		// pushes for one key can overlap (an old one still in flight after a timeout), so decide and update in one step
+		states.compute(from+" "+push.getOID(), new BiFunction <String, State, State> () {
+			public State apply(String key, State current) {
+				if ((current != null) && (push.getVersion() <= current.version)) {
+					refusal[0] = XMPPError.Condition.unexpected_request;
+					reason[0] = "Version "+push.getVersion()+" is not above v"+current.version+" held";
+					return current;
+				}
+				if (push.isSnapshot())
+					return (applied[0] = new State(push.getObject(), push.getVersion()));
+				if ((current == null) || (current.version != push.getBaseVersion())) {
+					refusal[0] = XMPPError.Condition.item_not_found;
+					reason[0] = "Base version "+push.getBaseVersion()+" not held";
+					return current;
+				}
+				try {
+					return (applied[0] = new State(applyChanges(current.object, push.getChanges()), push.getVersion()));
+				}
+				catch (Exception e) {
+					refusal[0] = XMPPError.Condition.bad_request;
+					reason[0] = "Delta not applicable: "+e;
+					return null;
+				}
+			}
+		});
+		if (applied[0] == null) {
+			if (verbose)
+				System.out.println("DeltaSyncReceiver refused v"+push.getVersion()+" of "+push.getOID()+" from "+from+": "+reason[0]);
+			connection.sendNoExceptionIQ(from, new MMError(refusal[0], reason[0], push.getPacketID()), false);
+			return;
+		}
+		connection.sendNoExceptionIQ(from, new ResultIQ(push.getPacketID()), false);
+		handler.stateChanged(from, push.getOID(), applied[0].object, applied[0].version);
+	}
+
+	/**
+	 * @return a copy of base with the changes made
+	 * @throws NoSuchFieldException if a change names a field base's class doesn't have
+	 */
+	private static Object applyChanges(Object base, Map <String, Object> changes)
+	throws NoSuchFieldException, IllegalAccessException {
+		Object result = DeltaFields.shallowCopy(base);
+		if (changes == null)
+			return result;
+		for (Map.Entry <String, Object> e : changes.entrySet()) {
+			Field f = DeltaFields.named(base.getClass(), e.getKey());
+			if (f == null)
+				throw new NoSuchFieldException(base.getClass().getName()+"."+e.getKey());
+			f.set(result, e.getValue());
+		}
+		return result;
+	}
+
+
+	/**
+	 * @return the latest state of an object, or null if none is held
+	 */
+	public Object getState(String from, String oid) {
+		State s = states.get(from+" "+oid);
+		return (s != null) ? s.object : null;
+	}
+
+	/**
+	 * Forget everything received from a correspondent. Its next delta for each object will be refused, and followed by a snapshot
+	 */
+	public void forgetCorrespondent(String from) {
+		String prefix = from+" ";
+		Iterator <String> it = states.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix))
+				it.remove();
+		}
+	}
+
+	/**
+	 * @return the number of objects held
+	 */
+	public int getStateCount() {
+		return states.size();
+	}
+
+}
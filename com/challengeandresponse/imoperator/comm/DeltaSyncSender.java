@@ -0,0 +1,208 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jivesoftware.smack.packet.IQ;
+
+import com.challengeandresponse.imoperator.m2mobjects.MMObjectDelta;
+
+/**
+ * Pushes successive states of an object to a correspondent, sending only the fields that changed since
+ * the last version the correspondent acknowledged. The far end applies them with a DeltaSyncReceiver.
+ * <p>For each (JID, OID) pair the sender remembers the last acknowledged version and a fingerprint of each of its
+ * fields (see DeltaFields). The first push to a pair, a push after a failure, and a push of an object of a different
+ * class are sent as snapshots. If the receiver doesn't have the base version of a delta (it restarted, say, or
+ * dropped its state) it replies with an error, and the push is repeated at once as a snapshot.</p>
+ * <p>Version numbers of a pair only go up, failures included, so a late delta from before a failure can never
+ * find its base version at the receiver and be merged into a newer state.</p>
+ * <p>push() waits for the acknowledgement, so the versions of one pair are applied strictly one after another.
+ * Pushes to different pairs don't wait for one another.</p>
+ * <p>MMObjectDelta must have a UniversalIQProvider bound at the receiver, like any other UniversalIQ.</p>
+ *
+ * @author jim
+ *
+ */
+public class DeltaSyncSender {
+
+	public static final long DEFAULT_ACK_TIMEOUT = 30000L; // msec
+
+	/**
+	 * What the correspondent is known to have
+	 */
+	private static class Baseline {
+		long version = MMObjectDelta.NO_BASE; // the last version number used. Only the acknowledged one if needsSnapshot is false
+		boolean needsSnapshot = true; // until a push is acknowledged, and again after a failure
+		Class <?> type;
+		Object[] fingerprints;
+	}
+
+	private final SimpleXMPPConnection connection;
+	private final ConcurrentHashMap <String, Baseline> baselines;
+	private final LongAdder snapshots;
+	private final LongAdder deltas;
+	private volatile long ackTimeout;
+	private boolean verbose = false;
+
+	/**
+	 * @param connection the connection to push on
+	 */
+	public DeltaSyncSender(SimpleXMPPConnection connection) {
+		this.connection = connection;
+		this.baselines = new ConcurrentHashMap <String, Baseline> ();
+		this.snapshots = new LongAdder();
+		this.deltas = new LongAdder();
+		this.ackTimeout = DEFAULT_ACK_TIMEOUT;
+	}
+
+	/**
+	 * @param timeout msec to wait for each push to be acknowledged
+	 */
+	public void setAckTimeout(long timeout) {
+		this.ackTimeout = timeout;
+	}
+
+	public void setVerbose(boolean setting) {
+		verbose = setting;
+	}
+
+
+	/**
+	 * Send the current state of object to a correspondent: the fields changed since the last acknowledged
+	 * version, or the whole object if there isn't one. Nothing is sent if no field has changed.
+	 * @param to the addressee
+	 * @param oid identifies the object, e.g. from OIDGenerator. The receiver keeps one state per sender and OID
+	 * @param object the state to send. It is read, not kept, so it may be changed and pushed again
+	 * @throws SimpleXMPPException if sending failed, or the receiver refused a snapshot. The next push will be a snapshot
+	 * @throws TimeoutException if the push wasn't acknowledged in time. The next push will be a snapshot
+	 */
+	public void push(String to, String oid, Object object)
+	throws SimpleXMPPException, TimeoutException {
+		Baseline baseline = baselines.get(key(to, oid));
+		if (baseline == null) {
+			Baseline newBaseline = new Baseline();
+			baseline = baselines.putIfAbsent(key(to, oid), newBaseline);
+			if (baseline == null)
+				baseline = newBaseline;
+		}
+		synchronized (baseline) {
+			Field[] fields = DeltaFields.of(object.getClass());
+			Object[] fingerprints = new Object[fields.length];
+			Map <String, Object> changes = new HashMap <String, Object> ();
+			boolean snapshot = baseline.needsSnapshot || (baseline.type != object.getClass());
+			try {
+				for (int i = 0; i < fields.length; i++) {
+					Object value = fields[i].get(object);
+					fingerprints[i] = DeltaFields.fingerprint(value);
+					if ((! snapshot) && (! equal(fingerprints[i], baseline.fingerprints[i])))
+						changes.put(fields[i].getName(), value);
+				}
+			}
+			catch (IllegalAccessException iae) { // the fields were made accessible
+				throw new IllegalStateException(iae);
+			}
+			if ((! snapshot) && changes.isEmpty())
+				return;
+
+			long base = baseline.version;
+			long version = base + 1;
+			try {
+				// the number is used up whether or not the push gets through
+				baseline.version = version;
+				if ((! snapshot) && (! send(to, MMObjectDelta.delta(oid, version, base, changes)))) {
+					// the receiver hasn't got the base version: start again from the whole object, under a new number
+					snapshot = true;
+					version++;
+					baseline.version = version;
+				}
+				if (snapshot) {
+					if (! send(to, MMObjectDelta.snapshot(oid, version, object)))
+						throw new SimpleXMPPException("Snapshot of "+oid+" refused by "+to);
+					snapshots.increment();
+				}
+				else
+					deltas.increment();
+			}
+			catch (SimpleXMPPException sxe) {
+				baseline.needsSnapshot = true;
+				throw sxe;
+			}
+			catch (TimeoutException te) {
+				baseline.needsSnapshot = true;
+				throw te;
+			}
+			baseline.needsSnapshot = false;
+			baseline.type = object.getClass();
+			baseline.fingerprints = fingerprints;
+			if (verbose)
+				System.out.println("DeltaSyncSender pushed "+oid+" v"+version+" to "+to+(snapshot ? " as a snapshot" : " with "+changes.size()+" changed fields"));
+		}
+	}
+
+	/**
+	 * @return true if the push was acknowledged, false if the receiver replied with an error
+	 */
+	private boolean send(String to, MMObjectDelta <?> push)
+	throws SimpleXMPPException, TimeoutException {
+		IQ reply = connection.sendIQgetIQ(to, push, false, ackTimeout);
+		if ((reply.getType() == IQ.Type.ERROR) && verbose)
+			System.out.println("DeltaSyncSender push of "+push.getOID()+" v"+push.getVersion()+" refused by "+to+": "+reply.getError());
+		return (reply.getType() != IQ.Type.ERROR);
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	private static String key(String to, String oid) {
+		return to+" "+oid;
+	}
+
+
+	/**
+	 * Forget what a correspondent has of an object, so the next push is a snapshot.
+	 * The version number of the pair is kept, so it still only goes up
+	 */
+	public void forget(String to, String oid) {
+		Baseline baseline = baselines.get(key(to, oid));
+		if (baseline != null) {
+			synchronized (baseline) {
+				baseline.needsSnapshot = true;
+				baseline.fingerprints = null;
+			}
+		}
+	}
+
+	/**
+	 * Forget everything sent to a correspondent, e.g. when it goes offline, version numbers included.
+	 * Use it only when the correspondent has dropped its state too, or numbering starting over could let a late delta through
+	 */
+	public void forgetCorrespondent(String to) {
+		String prefix = to+" ";
+		Iterator <String> it = baselines.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(prefix))
+				it.remove();
+		}
+	}
+
+	/**
+	 * @return the number of (JID, OID) pairs with a remembered version
+	 */
+	public int getTrackedCount() {
+		return baselines.size();
+	}
+
+	public long getSnapshotCount() {
+		return snapshots.sum();
+	}
+
+	public long getDeltaCount() {
+		return deltas.sum();
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Matches reply packets to outstanding IQ requests. One instance is bound to
+ * a connection as a single PacketListener/PacketFilter, and every pending request
+ * is held in a concurrent map keyed by packet ID... so the cost of recognizing a
+ * reply is one hash lookup no matter how many requests are outstanding.
+ * This replaces the one-PacketCollector-per-request approach, which left a
+ * collector behind (and checked against every later packet) each time a request timed out.
+ *
+ * <p>Each request is completed exactly once: by its reply, by its timeout, or by
+ * cancelAll() when the connection goes away. The entry is removed from the map in
+ * every case.</p>
+ *
+ * @author jim
+ *
+ */
+public class IQReplyCorrelator
+implements PacketListener, PacketFilter {
+
+	private final ConcurrentHashMap <String, CompletableFuture <IQ>> pending;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param scheduler the scheduler that runs the timeout for each request
+	 */
+	public IQReplyCorrelator(ScheduledExecutorService scheduler) {
+		this.pending = new ConcurrentHashMap <String, CompletableFuture <IQ>> ();
+		this.scheduler = scheduler;
+	}
+
+
+	/**
+	 * Register interest in the reply to a packet that is about to be sent. Call this BEFORE
+	 * sending the packet, so that a fast reply can't slip by unrecognized.
+	 * @param packetID the packet ID of the request
+	 * @param timeout msec to wait for the reply before the future fails with a TimeoutException
+	 * @return a future that completes with the reply packet
+	 * @throws SimpleXMPPException if a request with the same packet ID is already outstanding
+	 */
+	public CompletableFuture <IQ> expect(final String packetID, final long timeout)
+	throws SimpleXMPPException {
+		final CompletableFuture <IQ> future = new CompletableFuture <IQ> ();
+		if (pending.putIfAbsent(packetID, future) != null)
+			throw new SimpleXMPPException("A request with packet ID "+packetID+" is already outstanding");
+		final ScheduledFuture <?> timer = scheduler.schedule(new Runnable() {
+			public void run() {
+				if (pending.remove(packetID, future))
+					future.completeExceptionally(new TimeoutException("Reply packet not received within "+timeout+" msec"));
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		// whichever way the request ends, the timer is no longer needed
+		future.whenComplete(new BiConsumer <IQ, Throwable> () {
+			public void accept(IQ iq, Throwable t) {
+				timer.cancel(false);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Stop waiting for the reply to packetID, e.g. because sending the request failed
+	 * @param packetID the packet ID of the request
+	 * @param cause the exception to complete the request's future with
+	 */
+	public void fail(String packetID, Throwable cause) {
+		CompletableFuture <IQ> future = pending.remove(packetID);
+		if (future != null)
+			future.completeExceptionally(cause);
+	}
+
+	/**
+	 * Fail every outstanding request. Used when the connection is closed.
+	 * @param cause the exception to complete the outstanding futures with
+	 */
+	public void cancelAll(Throwable cause) {
+		for (String packetID : pending.keySet())
+			fail(packetID, cause);
+	}
+
+	/**
+	 * @return the number of requests still waiting for a reply
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+
+	// FILTER -- accepts only packets that someone is waiting for
+	public boolean accept(Packet packet) {
+		String packetID = packet.getPacketID();
+		return (packetID != null) && pending.containsKey(packetID);
+	}
+
+	// LISTENER -- hand the packet to whoever is waiting for it
+	public void processPacket(Packet packet) {
+		CompletableFuture <IQ> future = pending.remove(packet.getPacketID());
+		if (future == null)
+			return; // timed out in the meantime
+		if (packet instanceof IQ)
+			future.complete((IQ) packet);
+		else
+			future.completeExceptionally(new SimpleXMPPException("Reply packet received was not an IQ packet"));
+	}
+
+}
@@ -0,0 +1,45 @@
+package com.challengeandresponse.imoperator.comm;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Wraps a PacketListener so that its processPacket() runs on a PerSenderExecutor instead of
+ * the thread that delivered the packet (Smack's listener thread). Packets from different JIDs
+ * are processed in parallel. Packets from the same JID are processed one at a time, in the order received.
+ * <p>The filter is still evaluated on Smack's thread: only packets the filter accepts are handed off.</p>
+ *
+ * @author jim
+ *
+ */
+public class OrderedPacketListener
+implements PacketListener {
+
+	private final PacketListener listener;
+	private final PerSenderExecutor executor;
+
+	/**
+	 * @param listener the listener to run off Smack's thread
+	 * @param executor runs the listener, keeping per-sender order
+	 */
+	public OrderedPacketListener(PacketListener listener, PerSenderExecutor executor) {
+		this.listener = listener;
+		this.executor = executor;
+	}
+
+	public void processPacket(final Packet packet) {
+		executor.execute(packet.getFrom(), new Runnable() {
+			public void run() {
+				listener.processPacket(packet);
+			}
+		});
+	}
+
+	/**
+	 * @return the wrapped listener
+	 */
+	public PacketListener getListener() {
+		return listener;
+	}
+
+}
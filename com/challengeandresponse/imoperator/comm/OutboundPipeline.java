@@ -0,0 +1,253 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * The outbound stage of a SimpleXMPPConnection when write coalescing is turned on.
+ * Any number of threads submit() packets into one queue. A single writer thread takes them
+ * off, gathers up to maxBatch of them (waiting at most linger msec for more to arrive after the
+ * first one), and hands the lot to the Sink as one StanzaBatch... one socket write for many small
+ * stanzas. Packets leave in the order they were submitted, unless the pipeline is given
+ * another OutboundQueue (e.g. a PriorityOutboundScheduler) that orders them differently.
+ * <p>A lone packet is passed to the Sink as itself, so nothing is wrapped when traffic is light.</p>
+ *
+ * @author jim
+ *
+ */
+public class OutboundPipeline {
+
+	/**
+	 * Where the pipeline's writer thread sends each (possibly batched) packet
+	 */
+	public interface Sink {
+		public void write(Packet p);
+	}
+
+	public static final int CAPACITY_DEFAULT = 10000;
+
+	/**
+	 * The default OutboundQueue: first in, first out
+	 */
+	private static class FifoOutboundQueue
+	implements OutboundQueue {
+		private final LinkedBlockingQueue <Packet> queue;
+
+		FifoOutboundQueue(int capacity) {
+			queue = new LinkedBlockingQueue <Packet> (capacity);
+		}
+
+		public boolean offer(Packet p) {
+			return queue.offer(p);
+		}
+
+		public Packet take()
+		throws InterruptedException {
+			return queue.take();
+		}
+
+		public Packet poll(long timeout, TimeUnit unit)
+		throws InterruptedException {
+			return queue.poll(timeout, unit);
+		}
+
+		public Packet poll() {
+			return queue.poll();
+		}
+
+		public int size() {
+			return queue.size();
+		}
+	}
+
+	private final Sink sink;
+	private final int maxBatch;
+	private final long linger;
+	private final OutboundQueue queue;
+	private final AtomicLong packetsWritten;
+	private final AtomicLong writes;
+	private volatile Thread writer;
+	private volatile boolean running;
+	private boolean verbose = false;
+
+
+	/**
+	 * Make a pipeline with a FIFO queue
+	 * @param sink where batches are written
+	 * @param maxBatch the most packets combined into one write
+	 * @param linger msec to wait for more packets once the first of a batch has arrived. 0 to take only what is already queued.
+	 * @param capacity the most packets that can wait in the queue
+	 */
+	public OutboundPipeline(Sink sink, int maxBatch, long linger, int capacity) {
+		this(sink, maxBatch, linger, new FifoOutboundQueue(capacity));
+	}
+
+	/**
+	 * Make a pipeline that takes packets off the given queue
+	 * @param sink where batches are written
+	 * @param maxBatch the most packets combined into one write
+	 * @param linger msec to wait for more packets once the first of a batch has arrived. 0 to take only what is already queued.
+	 * @param queue the queue between senders and the writer thread
+	 */
+	public OutboundPipeline(Sink sink, int maxBatch, long linger, OutboundQueue queue) {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("maxBatch must be at least 1");
+		this.sink = sink;
+		this.maxBatch = maxBatch;
+		this.linger = linger;
+		this.queue = queue;
+		this.packetsWritten = new AtomicLong(0);
+		this.writes = new AtomicLong(0);
+		this.running = false;
+	}
+
+	public void setVerbose(boolean setting) {
+		this.verbose = setting;
+	}
+
+
+	/**
+	 * Start the writer thread, if it isn't already running
+	 */
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		writer = new DaemonThreadFactory("OutboundPipeline-writer").newThread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		});
+		writer.start();
+	}
+
+	/**
+	 * Stop the writer thread after it has written everything already submitted
+	 */
+	public synchronized void stop() {
+		if (! running)
+			return;
+		running = false;
+		writer.interrupt();
+		try {
+			writer.join();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		writer = null;
+	}
+
+
+	/**
+	 * Queue a packet for writing
+	 * @param p the packet
+	 * @throws SimpleXMPPException if the pipeline is not running or its queue is full
+	 */
+	public void submit(Packet p)
+	throws SimpleXMPPException {
+		if (! running)
+			throw new SimpleXMPPException("Outbound pipeline is not running");
+		if (! queue.offer(p))
+			throw new SimpleXMPPException("Outbound pipeline is full ("+queue.size()+" packets)");
+	}
+
+
+	private void writeLoop() {
+		List <Packet> batch = new ArrayList <Packet> (maxBatch);
+		while (running || (queue.size() > 0)) {
+			try {
+				batch.clear();
+				Packet first = running ? queue.take() : queue.poll();
+				if (first == null)
+					break;
+				batch.add(first);
+				drainTo(batch);
+				if ((linger > 0) && running) {
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+					while (batch.size() < maxBatch) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0)
+							break;
+						Packet next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+						if (next == null)
+							break;
+						batch.add(next);
+						drainTo(batch);
+					}
+				}
+			}
+			catch (InterruptedException ie) {
+				// stop() was called. Loop around to write what is left
+			}
+			if (batch.isEmpty())
+				continue;
+			write(batch);
+		}
+	}
+
+	/**
+	 * Add packets that are already queued to batch, until it holds maxBatch
+	 */
+	private void drainTo(List <Packet> batch) {
+		Packet p;
+		while ((batch.size() < maxBatch) && ((p = queue.poll()) != null))
+			batch.add(p);
+	}
+
+	private void write(List <Packet> batch) {
+		try {
+			if (batch.size() == 1)
+				sink.write(batch.get(0));
+			else
+				sink.write(new StanzaBatch(new ArrayList <Packet> (batch)));
+			writes.incrementAndGet();
+			packetsWritten.addAndGet(batch.size());
+		}
+		catch (RuntimeException re) { // the writer thread must survive a failed write
+			if (verbose)
+				System.out.println("OutboundPipeline lost "+batch.size()+" packet(s): "+re);
+		}
+	}
+
+
+	/**
+	 * @return the number of packets waiting to be written
+	 */
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the queue between senders and the writer thread
+	 */
+	public OutboundQueue getQueue() {
+		return queue;
+	}
+
+	/**
+	 * @return the average number of packets per socket write so far
+	 */
+	public double getAverageBatchSize() {
+		long w = writes.get();
+		return (w == 0) ? 0.0 : ((double) packetsWritten.get() / w);
+	}
+
+	public int getMaxBatch() {
+		return maxBatch;
+	}
+
+	public long getLinger() {
+		return linger;
+	}
+
+	public String toString() {
+		return "OutboundPipeline maxBatch:"+maxBatch+" linger:"+linger+" queued:"+getQueuedCount()+" avg batch:"+getAverageBatchSize();
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * The queue between the threads that send and the OutboundPipeline's writer thread.
+ * Any number of threads may offer(). Only the writer thread takes packets off.
+ * The order packets come off in is up to the implementation: FIFO by default, or
+ * by priority with PriorityOutboundScheduler.
+ *
+ * @author jim
+ *
+ */
+public interface OutboundQueue {
+
+	/**
+	 * @param p the packet to queue
+	 * @return false if the queue is full
+	 */
+	public boolean offer(Packet p);
+
+	/**
+	 * @return the next packet, waiting for one if the queue is empty
+	 * @throws InterruptedException
+	 */
+	public Packet take() throws InterruptedException;
+
+	/**
+	 * @return the next packet, or null if the queue is empty or none arrives in time
+	 * @throws InterruptedException
+	 */
+	public Packet poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * @return the next packet, or null if the queue is empty
+	 */
+	public Packet poll();
+
+	/**
+	 * @return the number of packets in the queue
+	 */
+	public int size();
+
+}
@@ -1,5 +1,8 @@
 package com.challengeandresponse.imoperator.comm;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
@@ -19,6 +22,8 @@ import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
  * </p>
  * <p>If no recognizedClass is set, the filter will always return
  * false (rejecting all packets).</p>
+ * <p>accept() takes no locks. Whether a packet class is accepted is worked out the first time
+ * that class is seen, and cached, so later packets of the class cost one lookup.</p>
  * 
  * @author jim
  *
@@ -26,8 +31,9 @@ import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
 public class PacketClassFilter
 implements PacketFilter {
 
-	@SuppressWarnings("unchecked")
-	private Class recognizedClass = null;
+	// replaced, never modified. Each change also replaces 'decisions', so no stale decision survives it
+	private volatile Class <?>[] recognizedClasses = new Class <?>[0];
+	private volatile ClassValue <Boolean> decisions = newDecisions(recognizedClasses);
 	private boolean verbose = false;
 
 	/**
@@ -40,11 +46,10 @@ implements PacketFilter {
 
 	/**
 	 * Instantiate a filter that accepts packets of the class of whatever recognizedClass is
-	 * @param recognizedClass the class that this filter should accept
+	 * @param recognizedClass the class that this filter should accept. If null, the filter accepts nothing until a class is added
 	 */
-	@SuppressWarnings("unchecked")
-	public PacketClassFilter(Class recognizedClass) {
-		this.recognizedClass = recognizedClass;
+	public PacketClassFilter(Class <?> recognizedClass) {
+		addRecognizedClass(recognizedClass);
 	}
 
 	public void setVerbose(boolean setting) {
@@ -55,29 +60,73 @@ implements PacketFilter {
 	 * Add an additional class that this filter accepts. Any number of 
 	 * classes may be added. 
 	 * 
-	 * @param recognizedClass a class that this filter should accept
+	 * @param recognizedClass a class that this filter should accept. null is ignored
+	 */
+	public synchronized void addRecognizedClass(Class <?> recognizedClass) {
+		if (recognizedClass == null)
+			return;
+		for (Class <?> c : recognizedClasses) {
+			if (c == recognizedClass)
+				return;
+		}
+		Class <?>[] updated = Arrays.copyOf(recognizedClasses, recognizedClasses.length + 1);
+		updated[recognizedClasses.length] = recognizedClass;
+		recognizedClasses = updated;
+		decisions = newDecisions(updated);
+	}
+
+	/**
+	 * Stop accepting a class. Does nothing if the class was not recognized.
+	 * @param recognizedClass a class that this filter should no longer accept
+	 */
+	public synchronized void removeRecognizedClass(Class <?> recognizedClass) {
+		ArrayList <Class <?>> updated = new ArrayList <Class <?>> (Arrays.asList(recognizedClasses));
+		if (updated.remove(recognizedClass)) {
+			recognizedClasses = updated.toArray(new Class <?>[updated.size()]);
+			decisions = newDecisions(recognizedClasses);
+		}
+	}
+
+	/**
+	 * @return a copy of the classes this filter accepts
+	 */
+	public Class <?>[] getRecognizedClasses() {
+		return recognizedClasses.clone();
+	}
+
+	/**
+	 * The isInstance() checks against all recognized classes are done once per concrete packet class,
+	 * the first time one is seen, and the decision is cached with the class
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized void addRecognizedClass(Class recognizedClass) {
-		this.recognizedClass = recognizedClass;
+	private static ClassValue <Boolean> newDecisions(final Class <?>[] classes) {
+		return new ClassValue <Boolean> () {
+			protected Boolean computeValue(Class <?> packetClass) {
+				for (Class <?> c : classes) {
+					if (c.isAssignableFrom(packetClass))
+						return Boolean.TRUE;
+				}
+				return Boolean.FALSE;
+			}
+		};
 	}
 
 
-	public synchronized boolean accept(Packet packet) {
+	public boolean accept(Packet packet) {
+		boolean result = (packet != null) && decisions.get(packet.getClass()).booleanValue();
 		if (verbose) {
 			System.out.println("PacketClassFilter... Accept is checking packet: "+packet);
-			System.out.println("recognizedPacketID:" +packet.getPacketID());
-			System.out.println("packet.getfrom: "+packet.getFrom());
 			System.out.println("packetID: "+packet.getPacketID());
 			System.out.println("fromJID:" +packet.getFrom());
-			System.out.println("PacketClassFilter... Accept is returning: "+((recognizedClass != null) && (recognizedClass.isInstance(packet))));
+			System.out.println("PacketClassFilter... Accept is returning: "+result);
 		}
-
-		return ((recognizedClass != null) && (recognizedClass.isInstance(packet)));
+		return result;
 	}
 
 	public String toString() {
-		return "recognizedClass: "+recognizedClass.getName();
+		StringBuilder sb = new StringBuilder("recognizedClasses:");
+		for (Class <?> c : recognizedClasses)
+			sb.append(" ").append(c.getName());
+		return sb.toString();
 	}
 
 
@@ -29,7 +29,7 @@ implements PacketFilter {
 	public PacketMatchAllFilter() {
 	}
 
-	public synchronized boolean accept(Packet packet) {
+	public boolean accept(Packet packet) {
 		return true;
 	}
 
@@ -0,0 +1,392 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.jivesoftware.smack.util.StringUtils;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * Dispatches inbound packets to handlers through hash lookups, instead of offering every packet
+ * to every registered PacketFilter in turn. Handlers can be routed by:<br />
+ * - packet ID, e.g. the reply to a pending request (optionally removed once it has fired)<br />
+ * - sender JID. A full JID matches that resource only, a bare JID matches every resource<br />
+ * - packet class. A handler for a class also gets packets of its subclasses and implementations<br />
+ * - query namespace: a UniversalIQ's namespace (UniversalIQRegistry.getNamespace()), or the namespace of any packet extension<br />
+ * Registrations that can't be expressed as one of those fall back to an ordinary PacketFilter, and
+ * only those are scanned linearly. So the cost of dispatch depends on how many handlers match a packet,
+ * not on how many are registered.
+ * <p>The router is itself a PacketListener and PacketFilter, attached to a connection once:<br />
+ * xmppc.addPacketListenerAndFilter(router,router);<br />
+ * A packet goes to every handler it matches, in the order: ID, sender, class, namespace, filters. A handler
+ * registered under several routes that a packet matches gets it once for each.</p>
+ * <p>Routes can be added and removed at any time from any thread. Reading the indexes takes no locks.</p>
+ *
+ * @author jim
+ *
+ */
+public class PacketRouter
+implements PacketListener, PacketFilter {
+
+	private static final PacketListener[] NONE = new PacketListener[0];
+
+	private static class IDRoute {
+		final PacketListener listener;
+		final boolean once;
+		IDRoute(PacketListener listener, boolean once) {
+			this.listener = listener;
+			this.once = once;
+		}
+	}
+
+	private static class FilterRoute {
+		final PacketFilter filter;
+		final PacketListener listener;
+		FilterRoute(PacketFilter filter, PacketListener listener) {
+			this.filter = filter;
+			this.listener = listener;
+		}
+	}
+
+	// each index maps a key to an array that is replaced, never modified, so readers need no lock
+	private final ConcurrentHashMap <String, IDRoute> byID;
+	private final ConcurrentHashMap <String, PacketListener[]> byFrom;
+	private final ConcurrentHashMap <Class <?>, PacketListener[]> byClass;
+	private final ConcurrentHashMap <String, PacketListener[]> byNamespace;
+	private volatile FilterRoute[] byFilter;
+
+	// the class routes that apply to each concrete packet class seen, superclasses and interfaces included.
+	// Replaced by an empty map whenever byClass changes
+	private volatile ConcurrentHashMap <Class <?>, PacketListener[]> classCache;
+
+	private boolean verbose = false;
+
+
+	public PacketRouter() {
+		byID = new ConcurrentHashMap <String, IDRoute> ();
+		byFrom = new ConcurrentHashMap <String, PacketListener[]> ();
+		byClass = new ConcurrentHashMap <Class <?>, PacketListener[]> ();
+		byNamespace = new ConcurrentHashMap <String, PacketListener[]> ();
+		byFilter = new FilterRoute[0];
+		classCache = new ConcurrentHashMap <Class <?>, PacketListener[]> ();
+	}
+
+	public void setVerbose(boolean setting) {
+		this.verbose = setting;
+	}
+
+
+	/**
+	 * Route the packet with ID packetID to listener. There is one route per ID: this replaces any earlier one.
+	 * @param packetID the packet ID
+	 * @param listener the handler
+	 * @param once true to remove the route when the first packet with this ID arrives, as for the reply to a request
+	 */
+	public void addIDRoute(String packetID, PacketListener listener, boolean once) {
+		byID.put(packetID, new IDRoute(listener, once));
+	}
+
+	/**
+	 * @param packetID the packet ID
+	 * @return true if there was a route for packetID
+	 */
+	public boolean removeIDRoute(String packetID) {
+		return (byID.remove(packetID) != null);
+	}
+
+	/**
+	 * Route packets from jid to listener
+	 * @param jid a full JID for that resource only, or a bare JID for all of its resources
+	 * @param listener the handler
+	 */
+	public void addFromRoute(String jid, PacketListener listener) {
+		addTo(byFrom, jid, listener);
+	}
+
+	public boolean removeFromRoute(String jid, PacketListener listener) {
+		return removeFrom(byFrom, jid, listener);
+	}
+
+	/**
+	 * Route packets that are instances of packetClass (a Packet subclass or an interface) to listener
+	 * @param packetClass the class
+	 * @param listener the handler
+	 */
+	public void addClassRoute(Class <?> packetClass, PacketListener listener) {
+		addTo(byClass, packetClass, listener);
+		classCache = new ConcurrentHashMap <Class <?>, PacketListener[]> ();
+	}
+
+	public boolean removeClassRoute(Class <?> packetClass, PacketListener listener) {
+		boolean result = removeFrom(byClass, packetClass, listener);
+		classCache = new ConcurrentHashMap <Class <?>, PacketListener[]> ();
+		return result;
+	}
+
+	/**
+	 * Route packets in namespace to listener. A UniversalIQ's namespace is UniversalIQRegistry.getNamespace() of its class:
+	 * the registered alias's namespace, or else its class name. Any packet's extensions are matched by their namespaces
+	 * @param namespace the namespace
+	 * @param listener the handler
+	 */
+	public void addNamespaceRoute(String namespace, PacketListener listener) {
+		addTo(byNamespace, namespace, listener);
+	}
+
+	public boolean removeNamespaceRoute(String namespace, PacketListener listener) {
+		return removeFrom(byNamespace, namespace, listener);
+	}
+
+	/**
+	 * Route packets accepted by filter to listener. Every packet is offered to every filter route,
+	 * so use one of the indexed routes where possible.
+	 * @param filter the filter
+	 * @param listener the handler
+	 */
+	public synchronized void addFilterRoute(PacketFilter filter, PacketListener listener) {
+		FilterRoute[] routes = Arrays.copyOf(byFilter, byFilter.length + 1);
+		routes[byFilter.length] = new FilterRoute(filter, listener);
+		byFilter = routes;
+	}
+
+	public synchronized boolean removeFilterRoute(PacketFilter filter, PacketListener listener) {
+		for (int i = 0; i < byFilter.length; i++) {
+			if ((byFilter[i].filter == filter) && (byFilter[i].listener == listener)) {
+				FilterRoute[] routes = new FilterRoute[byFilter.length - 1];
+				System.arraycopy(byFilter, 0, routes, 0, i);
+				System.arraycopy(byFilter, i + 1, routes, i, routes.length - i);
+				byFilter = routes;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Remove every route to listener
+	 * @param listener the handler
+	 */
+	public void removeListener(PacketListener listener) {
+		Iterator <IDRoute> it = byID.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().listener == listener)
+				it.remove();
+		}
+		for (String jid : byFrom.keySet())
+			removeFrom(byFrom, jid, listener);
+		for (Class <?> c : byClass.keySet())
+			removeFrom(byClass, c, listener);
+		classCache = new ConcurrentHashMap <Class <?>, PacketListener[]> ();
+		for (String ns : byNamespace.keySet())
+			removeFrom(byNamespace, ns, listener);
+		synchronized (this) {
+			for (FilterRoute fr : byFilter) {
+				if (fr.listener == listener)
+					removeFilterRoute(fr.filter, listener);
+			}
+		}
+	}
+
+
+	// FILTER -- the routes do the filtering
+	public boolean accept(Packet packet) {
+		return true;
+	}
+
+	// LISTENER -- dispatch
+	public void processPacket(Packet packet) {
+		int delivered = 0;
+
+		String id = packet.getPacketID();
+		if (id != null) {
+			IDRoute route = byID.get(id);
+			// a one-time route fires only for whoever removes it, in case the same ID arrives twice at once
+			if ((route != null) && ((! route.once) || byID.remove(id, route))) {
+				deliver(route.listener, packet);
+				delivered++;
+			}
+		}
+
+		String from = packet.getFrom();
+		if ((from != null) && (! byFrom.isEmpty())) {
+			delivered += deliver(byFrom.get(from), packet);
+			String bare = StringUtils.parseBareAddress(from);
+			if (! bare.equals(from))
+				delivered += deliver(byFrom.get(bare), packet);
+		}
+
+		if (! byClass.isEmpty())
+			delivered += deliver(classRoutes(packet.getClass()), packet);
+
+		if (! byNamespace.isEmpty()) {
+			if (packet instanceof UniversalIQ)
+				delivered += deliver(byNamespace.get(((UniversalIQ) packet).getQueryNamespace()), packet);
+			Collection <PacketExtension> extensions = packet.getExtensions();
+			if (extensions != null) {
+				for (PacketExtension pe : extensions) {
+					if (pe.getNamespace() != null)
+						delivered += deliver(byNamespace.get(pe.getNamespace()), packet);
+				}
+			}
+		}
+
+		for (FilterRoute fr : byFilter) {
+			if (fr.filter.accept(packet)) {
+				deliver(fr.listener, packet);
+				delivered++;
+			}
+		}
+
+		if (verbose)
+			System.out.println("PacketRouter delivered packet "+id+" from "+from+" to "+delivered+" handler(s)");
+	}
+
+
+	/**
+	 * @return the class routes that apply to instances of c, looked up once per concrete class
+	 */
+	private PacketListener[] classRoutes(Class <?> c) {
+		ConcurrentHashMap <Class <?>, PacketListener[]> cache = classCache;
+		PacketListener[] result = cache.get(c);
+		if (result == null) {
+			LinkedHashSet <PacketListener> found = new LinkedHashSet <PacketListener> ();
+			collectClassRoutes(c, found);
+			result = found.toArray(NONE);
+			cache.put(c, result);
+		}
+		return result;
+	}
+
+	private void collectClassRoutes(Class <?> c, LinkedHashSet <PacketListener> found) {
+		for ( ; c != null; c = c.getSuperclass()) {
+			PacketListener[] routes = byClass.get(c);
+			if (routes != null)
+				found.addAll(Arrays.asList(routes));
+			for (Class <?> i : c.getInterfaces())
+				collectClassRoutes(i, found);
+		}
+	}
+
+	private int deliver(PacketListener[] listeners, Packet packet) {
+		if (listeners == null)
+			return 0;
+		for (PacketListener l : listeners)
+			deliver(l, packet);
+		return listeners.length;
+	}
+
+	private void deliver(PacketListener listener, Packet packet) {
+		try {
+			listener.processPacket(packet);
+		}
+		catch (RuntimeException re) { // one failing handler mustn't keep the packet from the others
+			if (verbose)
+				System.out.println("PacketRouter handler "+listener+" failed: "+re);
+		}
+	}
+
+	private static <K> void addTo(ConcurrentHashMap <K, PacketListener[]> index, K key, PacketListener listener) {
+		while (true) {
+			PacketListener[] old = index.get(key);
+			if (old == null) {
+				if (index.putIfAbsent(key, new PacketListener[] { listener }) == null)
+					return;
+			}
+			else {
+				PacketListener[] updated = Arrays.copyOf(old, old.length + 1);
+				updated[old.length] = listener;
+				if (index.replace(key, old, updated))
+					return;
+			}
+		}
+	}
+
+	private static <K> boolean removeFrom(ConcurrentHashMap <K, PacketListener[]> index, K key, PacketListener listener) {
+		while (true) {
+			PacketListener[] old = index.get(key);
+			if (old == null)
+				return false;
+			int i = 0;
+			while ((i < old.length) && (old[i] != listener))
+				i++;
+			if (i == old.length)
+				return false;
+			if (old.length == 1) {
+				if (index.remove(key, old))
+					return true;
+			}
+			else {
+				PacketListener[] updated = new PacketListener[old.length - 1];
+				System.arraycopy(old, 0, updated, 0, i);
+				System.arraycopy(old, i + 1, updated, i, updated.length - i);
+				if (index.replace(key, old, updated))
+					return true;
+			}
+		}
+	}
+
+	public String toString() {
+		return "PacketRouter routes by ID:"+byID.size()+" from:"+byFrom.size()+" class:"+byClass.size()+
+			" namespace:"+byNamespace.size()+" filter:"+byFilter.length;
+	}
+
+
+
+
+	// for testing - dispatch time with many pending requests, routed vs. offered to one filter per request
+	public static void main(String[] args) {
+		final int pending = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		final int packets = 200000;
+		final int[] count = new int[1];
+		PacketListener counter = new PacketListener() {
+			public void processPacket(Packet packet) {
+				count[0]++;
+			}
+		};
+
+		PacketRouter router = new PacketRouter();
+		PacketIDAndFromFilter[] filters = new PacketIDAndFromFilter[pending];
+		for (int i = 0; i < pending; i++) {
+			router.addIDRoute("req-"+i, counter, false);
+			filters[i] = new PacketIDAndFromFilter("req-"+i, null);
+		}
+		IQ m = new IQ() {
+			public String getChildElementXML() {
+				return null;
+			}
+		};
+		m.setFrom("someone@example.com/res");
+
+		long start = System.nanoTime();
+		for (int n = 0; n < packets; n++) {
+			m.setPacketID("req-"+(n % pending));
+			router.processPacket(m);
+		}
+		long routed = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int n = 0; n < packets; n++) {
+			m.setPacketID("req-"+(n % pending));
+			for (PacketIDAndFromFilter f : filters) {
+				if (f.accept(m))
+					count[0]++;
+			}
+		}
+		long scanned = System.nanoTime() - start;
+
+		System.out.println(router);
+		System.out.println("Routed:  "+(routed / packets)+" nsec/packet");
+		System.out.println("Scanned: "+(scanned / packets)+" nsec/packet");
+		System.out.println("Handler calls: "+count[0]);
+	}
+
+}
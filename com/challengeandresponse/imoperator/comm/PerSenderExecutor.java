@@ -0,0 +1,135 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on an underlying Executor so that tasks with different keys run in parallel,
+ * while tasks with the same key run one at a time, in the order they were submitted.
+ * Used to take packet processing off Smack's listener thread without reordering the
+ * packets that come from any one JID.
+ * <p>Each key with work pending has a "lane": a queue of its tasks, drained by at most one
+ * executor task at a time. A lane runs at most TASKS_PER_TURN tasks before handing its
+ * thread back, so a chatty sender can't monopolize a small pool. An idle lane is discarded,
+ * so memory use follows the number of senders with work in flight, not the number ever seen.</p>
+ *
+ * @author jim
+ *
+ */
+public class PerSenderExecutor {
+
+	public static final int TASKS_PER_TURN = 32;
+
+	private final Executor executor;
+	private final ConcurrentHashMap <String, Lane> lanes;
+	private boolean verbose = false;
+
+
+	private class Lane
+	implements Runnable {
+		private final String key;
+		private final ArrayDeque <Runnable> tasks = new ArrayDeque <Runnable> ();
+		private boolean scheduled = false; // an executor task is draining this lane
+		private boolean retired = false; // removed from 'lanes'. Submitters must make a new one
+
+		Lane(String key) {
+			this.key = key;
+		}
+
+		public void run() {
+			while (true) {
+				for (int n = 0; n < TASKS_PER_TURN; n++) {
+					Runnable task;
+					synchronized (this) {
+						task = tasks.poll();
+						if (task == null) {
+							scheduled = false;
+							retired = true;
+							lanes.remove(key, this);
+							return;
+						}
+					}
+					try {
+						task.run();
+					}
+					catch (RuntimeException re) { // one failed task mustn't stall the sender's later packets
+						if (verbose)
+							System.out.println("PerSenderExecutor task for "+key+" failed: "+re);
+					}
+				}
+				// give the thread back, and queue up for another turn
+				try {
+					executor.execute(this);
+					return;
+				}
+				catch (RejectedExecutionException ree) {
+					// 'scheduled' is still set, so no submitter will start this lane again: it must finish its queue on this thread
+					if (verbose)
+						System.out.println("PerSenderExecutor could not requeue "+key+", draining it here: "+ree.getMessage());
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * @param executor runs the lanes. A bounded thread pool, or (on Java 21 and later) 
+	 * Executors.newVirtualThreadPerTaskExecutor()
+	 */
+	public PerSenderExecutor(Executor executor) {
+		this.executor = executor;
+		this.lanes = new ConcurrentHashMap <String, Lane> ();
+	}
+
+	public void setVerbose(boolean setting) {
+		this.verbose = setting;
+	}
+
+
+	/**
+	 * Run task after every task previously submitted with the same key
+	 * @param key the ordering key, e.g. a sender's JID. null is treated as ""
+	 * @param task the task
+	 * @throws RejectedExecutionException if the underlying executor will not accept the lane
+	 */
+	public void execute(String key, Runnable task) {
+		if (key == null)
+			key = "";
+		while (true) {
+			Lane lane = lanes.get(key);
+			if (lane == null) {
+				Lane newLane = new Lane(key);
+				lane = lanes.putIfAbsent(key, newLane);
+				if (lane == null)
+					lane = newLane;
+			}
+			synchronized (lane) {
+				if (lane.retired)
+					continue; // it went idle and was removed just now... get or make the current one
+				lane.tasks.add(task);
+				if (! lane.scheduled) {
+					lane.scheduled = true;
+					try {
+						executor.execute(lane);
+					}
+					catch (RejectedExecutionException ree) {
+						lane.scheduled = false;
+						lane.tasks.removeLast();
+						throw ree;
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of keys that currently have work queued or running
+	 */
+	public int getActiveKeyCount() {
+		return lanes.size();
+	}
+
+}
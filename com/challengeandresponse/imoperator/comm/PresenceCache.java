@@ -0,0 +1,147 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * A bounded cache of correspondents' presence, keyed by bare JID, so that the
+ * "is the addressee online?" check before a send is a local hash lookup.
+ * <p>The cache holds at most maxEntries JIDs, evicting the least recently used
+ * when full, and each entry expires ttl msec after it was last refreshed. Bound as a
+ * PacketListener/PacketFilter on the connection, it is kept current by the presence
+ * packets the server pushes: "available" refreshes an entry, anything else drops it, so that
+ * the next lookup goes back to the roster (which knows about all of a JID's resources).</p>
+ *
+ * @author jim
+ *
+ */
+public class PresenceCache
+implements PacketListener, PacketFilter {
+
+	private static class Entry {
+		final Presence.Type type;
+		final long expires;
+		Entry(Presence.Type type, long expires) {
+			this.type = type;
+			this.expires = expires;
+		}
+	}
+
+	private final int maxEntries;
+	private final long ttl;
+	private final LinkedHashMap <String, Entry> entries;
+
+
+	/**
+	 * @param maxEntries the most JIDs the cache will hold
+	 * @param ttl msec an entry stays valid after it was last refreshed
+	 */
+	public PresenceCache(int maxEntries, long ttl) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be at least 1");
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+		// access-ordered, so the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap <String, Entry> (16, 0.75F, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry <String, Entry> eldest) {
+				return size() > PresenceCache.this.maxEntries;
+			}
+		};
+	}
+
+
+	/**
+	 * @param jid a bare or full JID
+	 * @return the cached presence type of jid, or null if it is not cached or its entry has expired
+	 */
+	public synchronized Presence.Type lookup(String jid) {
+		String bare = StringUtils.parseBareAddress(jid);
+		Entry e = entries.get(bare);
+		if (e == null)
+			return null;
+		if (e.expires < System.currentTimeMillis()) {
+			entries.remove(bare);
+			return null;
+		}
+		return e.type;
+	}
+
+	/**
+	 * Record jid's presence, refreshing its TTL
+	 * @param jid a bare or full JID
+	 * @param type the presence type
+	 */
+	public synchronized void update(String jid, Presence.Type type) {
+		entries.put(StringUtils.parseBareAddress(jid), new Entry(type, System.currentTimeMillis() + ttl));
+	}
+
+	/**
+	 * Forget jid
+	 * @param jid a bare or full JID
+	 */
+	public synchronized void invalidate(String jid) {
+		entries.remove(StringUtils.parseBareAddress(jid));
+	}
+
+	/**
+	 * Checks whether jid has an entry, without counting as a use for LRU purposes.
+	 * Expired entries still count until they are looked up or purgeExpired() is called.
+	 * @param jid a bare or full JID
+	 * @return true if jid is in the cache
+	 */
+	public synchronized boolean contains(String jid) {
+		return entries.containsKey(StringUtils.parseBareAddress(jid));
+	}
+
+	/**
+	 * Remove all expired entries
+	 */
+	public synchronized void purgeExpired() {
+		long now = System.currentTimeMillis();
+		Iterator <Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().expires < now)
+				it.remove();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public long getTTL() {
+		return ttl;
+	}
+
+
+	// FILTER -- presence packets only
+	public boolean accept(Packet packet) {
+		return (packet instanceof Presence) && (packet.getFrom() != null);
+	}
+
+	// LISTENER -- keep the cache current
+	public void processPacket(Packet packet) {
+		Presence p = (Presence) packet;
+		if (p.getType() == Presence.Type.available)
+			update(p.getFrom(), Presence.Type.available);
+		else
+			invalidate(p.getFrom());
+	}
+
+	public String toString() {
+		return "PresenceCache "+size()+"/"+maxEntries+" entries, ttl "+ttl+" msec";
+	}
+
+}
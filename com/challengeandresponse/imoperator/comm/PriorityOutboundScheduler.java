@@ -0,0 +1,287 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jivesoftware.smack.packet.Packet;
+
+import com.challengeandresponse.imoperator.decorations.RPC;
+import com.challengeandresponse.imoperator.decorations.RPCI;
+import com.challengeandresponse.imoperator.universaliq.UniversalIQRPC;
+
+/**
+ * An OutboundQueue that sends higher-priority packets first, so bulk traffic queued
+ * ahead of a latency-critical call doesn't hold it up.
+ * <p>The priority of a packet is the priority field of its RPC decoration (for classes implementing
+ * RPCI) or of UniversalIQRPC. Anything else gets DEFAULT_PRIORITY. Larger numbers go first.</p>
+ * <p>To keep low-priority traffic from starving, priorities age: a packet that has waited
+ * agingInterval msec competes as if its priority were one higher, after two intervals two higher, and so on.
+ * Within one priority, packets leave in the order they arrived.</p>
+ * <p>Per-priority queue depth and wait times are kept for monitoring.</p>
+ *
+ * @author jim
+ *
+ */
+@SuppressWarnings("deprecation")
+public class PriorityOutboundScheduler
+implements OutboundQueue {
+
+	public static final int DEFAULT_PRIORITY = 0;
+
+	private static class Queued {
+		final Packet packet;
+		final long enqueued; // System.nanoTime()
+		Queued(Packet packet) {
+			this.packet = packet;
+			this.enqueued = System.nanoTime();
+		}
+	}
+
+	/**
+	 * The packets waiting at one priority, and the statistics for that priority
+	 */
+	private static class Level {
+		final ArrayDeque <Queued> queue = new ArrayDeque <Queued> ();
+		long sent;
+		long totalWait; // nanos
+		long maxWait; // nanos
+	}
+
+	private final long agingNanos;
+	private final int capacity;
+	private final ReentrantLock lock;
+	private final Condition notEmpty;
+	private final TreeMap <Integer, Level> levels;
+	private int count;
+
+
+	/**
+	 * @param agingInterval msec of waiting that raises a packet's effective priority by one
+	 * @param capacity the most packets that can wait, over all priorities
+	 */
+	public PriorityOutboundScheduler(long agingInterval, int capacity) {
+		if (agingInterval < 1)
+			throw new IllegalArgumentException("agingInterval must be at least 1 msec");
+		this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingInterval);
+		this.capacity = capacity;
+		this.lock = new ReentrantLock();
+		this.notEmpty = lock.newCondition();
+		this.levels = new TreeMap <Integer, Level> ();
+		this.count = 0;
+	}
+
+
+	/**
+	 * @param p a packet
+	 * @return the scheduling priority of p
+	 */
+	public static int priorityOf(Packet p) {
+		if (p instanceof UniversalIQRPC)
+			return ((UniversalIQRPC) p).getPriority();
+		if (p instanceof RPCI) {
+			RPC rpc = ((RPCI) p).getRPC();
+			if (rpc != null)
+				return rpc.getPriority();
+		}
+		return DEFAULT_PRIORITY;
+	}
+
+
+	public boolean offer(Packet p) {
+		Integer priority = Integer.valueOf(priorityOf(p));
+		lock.lock();
+		try {
+			if (count >= capacity)
+				return false;
+			Level level = levels.get(priority);
+			if (level == null) {
+				level = new Level();
+				levels.put(priority, level);
+			}
+			level.queue.addLast(new Queued(p));
+			count++;
+			notEmpty.signal();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public Packet take()
+	throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0)
+				notEmpty.await();
+			return dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public Packet poll(long timeout, TimeUnit unit)
+	throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public Packet poll() {
+		lock.lock();
+		try {
+			return (count == 0) ? null : dequeue();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Remove and return the head of the level whose head has the highest aged priority.
+	 * Called with the lock held and count > 0. The cost is one comparison per priority in use.
+	 */
+	private Packet dequeue() {
+		long now = System.nanoTime();
+		Level best = null;
+		long bestScore = Long.MIN_VALUE;
+		// highest priority first, so on equal scores the higher priority wins
+		Iterator <Map.Entry <Integer, Level>> it = levels.descendingMap().entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry <Integer, Level> e = it.next();
+			Queued head = e.getValue().queue.peekFirst();
+			if (head == null)
+				continue;
+			long score = e.getKey().longValue() + ((now - head.enqueued) / agingNanos);
+			if (score > bestScore) {
+				best = e.getValue();
+				bestScore = score;
+			}
+		}
+		Queued q = best.queue.pollFirst();
+		count--;
+		long wait = now - q.enqueued;
+		best.sent++;
+		best.totalWait += wait;
+		if (wait > best.maxWait)
+			best.maxWait = wait;
+		return q.packet;
+	}
+
+
+	/**
+	 * @return the priorities that have been seen so far
+	 */
+	public Integer[] getPriorities() {
+		lock.lock();
+		try {
+			return levels.keySet().toArray(new Integer[levels.size()]);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority a priority
+	 * @return the number of packets waiting at that priority
+	 */
+	public int getQueueDepth(int priority) {
+		lock.lock();
+		try {
+			Level level = levels.get(Integer.valueOf(priority));
+			return (level == null) ? 0 : level.queue.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority a priority
+	 * @return the number of packets at that priority that have left the queue
+	 */
+	public long getSentCount(int priority) {
+		lock.lock();
+		try {
+			Level level = levels.get(Integer.valueOf(priority));
+			return (level == null) ? 0 : level.sent;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority a priority
+	 * @return the average msec that packets at that priority have waited in the queue
+	 */
+	public double getAverageWaitMillis(int priority) {
+		lock.lock();
+		try {
+			Level level = levels.get(Integer.valueOf(priority));
+			if ((level == null) || (level.sent == 0))
+				return 0.0;
+			return (level.totalWait / (double) level.sent) / 1.0e6;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param priority a priority
+	 * @return the longest msec any packet at that priority has waited in the queue
+	 */
+	public double getMaxWaitMillis(int priority) {
+		lock.lock();
+		try {
+			Level level = levels.get(Integer.valueOf(priority));
+			return (level == null) ? 0.0 : (level.maxWait / 1.0e6);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("PriorityOutboundScheduler");
+		for (Integer priority : getPriorities()) {
+			int p = priority.intValue();
+			sb.append("\n priority ").append(p)
+			.append(" depth:").append(getQueueDepth(p))
+			.append(" sent:").append(getSentCount(p))
+			.append(" avg wait:").append(getAverageWaitMillis(p))
+			.append(" max wait:").append(getMaxWaitMillis(p)).append(" msec");
+		}
+		return sb.toString();
+	}
+
+}
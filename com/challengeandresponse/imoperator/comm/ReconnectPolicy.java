@@ -0,0 +1,88 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Settings for SimpleXMPPConnection's automatic reconnect: whether it happens at all,
+ * how long to wait between attempts, and how many outbound packets to hold while the
+ * connection is down.
+ * <p>The wait before attempt n (counting from 0) is drawn at random from the upper half of
+ * min(maxDelay, baseDelay * 2^n) msec. The randomness spreads out the reconnects of many
+ * clients that lost the same server at the same moment, and the lower bound keeps a
+ * client from hammering the server with immediate retries.</p>
+ *
+ * @author jim
+ *
+ */
+public class ReconnectPolicy {
+
+	public static final long BASE_DELAY_DEFAULT = 500L;
+	public static final long MAX_DELAY_DEFAULT = 60 * 1000L;
+	public static final int QUEUE_CAPACITY_DEFAULT = 1000;
+
+	/**
+	 * Reconnect automatically, with the default delays and queue capacity
+	 */
+	public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(true, BASE_DELAY_DEFAULT, MAX_DELAY_DEFAULT, QUEUE_CAPACITY_DEFAULT);
+
+	/**
+	 * Never reconnect automatically. Sends fail while the connection is down.
+	 */
+	public static final ReconnectPolicy NEVER = new ReconnectPolicy(false, BASE_DELAY_DEFAULT, MAX_DELAY_DEFAULT, 0);
+
+	private final boolean enabled;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final int queueCapacity;
+
+	/**
+	 * @param enabled true to reconnect automatically when the connection is lost
+	 * @param baseDelay msec, the upper bound of the wait before the first attempt
+	 * @param maxDelay msec, the most the upper bound of the wait can grow to
+	 * @param queueCapacity the most outbound packets held while the connection is down. Sends beyond this fail with an exception.
+	 */
+	public ReconnectPolicy(boolean enabled, long baseDelay, long maxDelay, int queueCapacity) {
+		if ((baseDelay < 1) || (maxDelay < baseDelay))
+			throw new IllegalArgumentException("Delays must satisfy 1 <= baseDelay <= maxDelay");
+		if (queueCapacity < 0)
+			throw new IllegalArgumentException("queueCapacity must not be negative");
+		this.enabled = enabled;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.queueCapacity = queueCapacity;
+	}
+
+
+	/**
+	 * @param attempt the number of attempts that have already failed
+	 * @return msec to wait before the next attempt
+	 */
+	public long nextDelay(int attempt) {
+		long ceiling = maxDelay;
+		if (attempt < Long.numberOfLeadingZeros(baseDelay) - 1) // otherwise the shift would overflow, and maxDelay applies anyway
+			ceiling = Math.min(maxDelay, baseDelay << attempt);
+		long half = ceiling / 2;
+		return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public String toString() {
+		return "ReconnectPolicy enabled:"+enabled+" baseDelay:"+baseDelay+" maxDelay:"+maxDelay+" queueCapacity:"+queueCapacity;
+	}
+
+}
@@ -0,0 +1,23 @@
+package com.challengeandresponse.imoperator.comm;
+
+import org.jivesoftware.smack.packet.IQ;
+
+/**
+ * An empty IQ result, acknowledging the request with the same packet ID
+ *
+ * @author jim
+ *
+ */
+class ResultIQ
+extends IQ {
+
+	ResultIQ(String packetID) {
+		setType(IQ.Type.RESULT);
+		setPacketID(packetID);
+	}
+
+	public String getChildElementXML() {
+		return null;
+	}
+
+}
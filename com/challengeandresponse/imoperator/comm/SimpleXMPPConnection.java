@@ -1,12 +1,23 @@
 package com.challengeandresponse.imoperator.comm;
 
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.PacketFilter;
-import org.jivesoftware.smack.filter.PacketIDFilter;
 import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.util.StringUtils;
 
 import com.challengeandresponse.imoperator.test.ProcessorEcho;
 
@@ -31,11 +42,21 @@ import com.challengeandresponse.imoperator.test.ProcessorEcho;
  * 2007-03-05 Created - Jim
  * 2008-03-20 Patched up a bit, trimmed the documentation
  * 2008-04-06 Now uses the package's TimeoutException rather than one from java.concurrent (doh)
- * 
- * KNOWN ISSUES
- * beware of memory usage issues - the connection adds ALL correspondents to its roster (to
- * prevent attempting to send when the addressee would be offline) - this list grows without
- * bound, maybe just an issue for the server (?)  - where is the roster kept?
+ * 2026-10-17 Added sendIQAsync(). Replies are matched by one IQReplyCorrelator instead of a PacketCollector per request
+ * 2026-10-17 Online checks go through a bounded PresenceCache. Correspondents the connection adds to the roster
+ *            are pruned from it again once they drop out of the cache, so the roster no longer grows without bound
+ * 2026-10-17 secureConnect() waits for TLS, login and the roster instead of sleeping 2 seconds. Optional background
+ *            roster load, and getConnectTimings() reports the time spent in each phase
+ * 2026-10-17 Reconnects automatically with jittered exponential backoff (see ReconnectPolicy). Packets sent while the
+ *            connection is down are held in a bounded queue, and listeners are re-attached to the new connection
+ * 2026-10-17 Optional write coalescing through an OutboundPipeline (see setOutboundBatching())
+ * 2026-10-17 Optional priority scheduling of outbound packets (see setOutboundPriorityAging())
+ * 2026-10-17 Optional listener executor, keeping per-sender order (see setListenerExecutor())
+ * 2026-10-17 Optional parallel decoding of lazy UniversalIQ payloads (see setDecodeExecutor())
+ * 2026-10-17 Failed connect attempts are torn down, a reconnect survives losing the new link while draining,
+ *            and disconnect() cleans up even when the connection is already dead
+ * 2026-10-17 Added correspondents are pruned from the roster when they have not been sent to for the cache TTL,
+ *            rather than when their cache entry expires
  */
 
 public class SimpleXMPPConnection {
@@ -45,13 +66,47 @@ public class SimpleXMPPConnection {
 	private boolean allowSelfSigned;
 
 	// connection state
-	private XMPPConnection xmppConnection;
+	private volatile XMPPConnection xmppConnection;
 	private Presence currentPresence;
-	private Vector <PacketListener> packetListeners;
+	private Map <PacketListener, ListenerRegistration> packetListeners; // in the order added, so they are re-attached in that order
+	private PerSenderExecutor listenerExecutor; // null to run listeners on Smack's listener thread
+	private Executor decodeExecutor; // null to decode lazy payloads wherever the listener reads them
 	private Roster roster;
+	private volatile CompletableFuture <Roster> rosterLoad;
+	private boolean backgroundRosterLoad;
+	private ConnectTimings connectTimings;
+
+	// reply matching for sendIQAsync() and sendIQgetIQ(), and the timer thread behind it
+	private ScheduledThreadPoolExecutor scheduler;
+	private IQReplyCorrelator replyCorrelator;
+
+	// presence of correspondents, and the roster entries this class created for them (so they can be pruned)
+	private PresenceCache presenceCache;
+	private ConcurrentHashMap <String, Long> autoRosterEntries; // JIDs the connection added to the roster, to when they were last sent to
+	private ScheduledFuture <?> rosterPruner;
+	private long rosterPruneInterval;
+	private boolean rosterPruning = true; // false if another connection of the account prunes (see shareRosterStateOf())
+
+	// automatic reconnect, and the packets held while it is under way
+	private ReconnectPolicy reconnectPolicy;
+	private ScheduledThreadPoolExecutor reconnector;
+	private volatile boolean reconnecting;
+	private int reconnectAttempts;
+	private BlockingQueue <Packet> outboundQueue;
+	private ConnectionListener connectionMonitor;
+
+	// single-writer outbound stage, or null to send on the caller's thread
+	private OutboundPipeline outboundPipeline;
+	private int outboundMaxBatch = 1;
+	private long outboundLinger = 0;
+	private long outboundAging = 0; // msec, 0 for FIFO
 
 	// public constants
 	public static final int XMPP_CLIENT_DEFAULT_PORT = 5222;
+	public static final int PRESENCE_CACHE_DEFAULT_SIZE = 1000;
+	public static final long PRESENCE_CACHE_DEFAULT_TTL = 10 * 60 * 1000L;
+	public static final long ROSTER_PRUNE_DEFAULT_INTERVAL = 60 * 1000L;
+	public static final long TLS_POLL_INTERVAL = 5L; // msec between checks while waiting for TLS negotiation to finish
 
 
 	/**
@@ -86,24 +141,100 @@ public class SimpleXMPPConnection {
 		this.xmppConnection = null;
 		this.verbose = false;
 		this.currentPresence = new Presence(Presence.Type.unavailable);
-		this.packetListeners = new Vector <PacketListener> ();
+		this.packetListeners = Collections.synchronizedMap(new LinkedHashMap <PacketListener, ListenerRegistration> ());
+		this.listenerExecutor = null;
+		this.decodeExecutor = null;
+		this.scheduler = new ScheduledThreadPoolExecutor(1,new DaemonThreadFactory("SimpleXMPPConnection-timer"));
+		this.scheduler.setRemoveOnCancelPolicy(true); // most reply timers are cancelled, don't let them pile up in the queue
+		this.replyCorrelator = new IQReplyCorrelator(scheduler);
+		this.presenceCache = new PresenceCache(PRESENCE_CACHE_DEFAULT_SIZE,PRESENCE_CACHE_DEFAULT_TTL);
+		this.autoRosterEntries = new ConcurrentHashMap <String, Long> ();
+		this.rosterPruneInterval = ROSTER_PRUNE_DEFAULT_INTERVAL;
+		this.backgroundRosterLoad = false;
+		this.connectTimings = new ConnectTimings();
+		this.reconnector = new ScheduledThreadPoolExecutor(1,new DaemonThreadFactory("SimpleXMPPConnection-reconnect"));
+		this.reconnecting = false;
+		this.connectionMonitor = new ConnectionMonitor();
+		setReconnectPolicy(ReconnectPolicy.DEFAULT);
 	}
 
 
 
 
 	/**
-	 * Set the packet listener and filter on a SimpleXMPPConnection
+	 * A listener as the caller added it, with its filter and the listener actually attached to the
+	 * XMPPConnection (the same one, or an OrderedPacketListener wrapping it)
+	 */
+	private static class ListenerRegistration {
+		final PacketFilter filter;
+		final PacketListener attached;
+		ListenerRegistration(PacketFilter filter, PacketListener attached) {
+			this.filter = filter;
+			this.attached = attached;
+		}
+	}
+
+	/**
+	 * Run packet listeners on an executor instead of Smack's single listener thread, so that a slow
+	 * listener (e.g. one that does a synchronous send) no longer holds up all inbound processing.
+	 * Packets from different JIDs are processed in parallel, packets from the same JID one at a time
+	 * and in the order received. The executor can be a bounded pool, e.g. Executors.newFixedThreadPool(),
+	 * or on Java 21 and later, Executors.newVirtualThreadPerTaskExecutor().
+	 * <p>This applies to listeners added after the call, so call it before addPacketListenerAndFilter().
+	 * Listeners then run concurrently with one another, and must be thread safe.</p>
+	 * @param executor the executor to run listeners on, or null to run them on Smack's thread (the default)
+	 */
+	public void setListenerExecutor(Executor executor) {
+		this.listenerExecutor = (executor != null) ? new PerSenderExecutor(executor) : null;
+		if (listenerExecutor != null)
+			listenerExecutor.setVerbose(verbose);
+	}
+
+	/**
+	 * Decode the payloads of lazily decoded UniversalIQs (see UniversalIQProvider.setLazy()) on an executor,
+	 * so that Smack's thread only captures them, and large payloads are decoded in parallel. Packets reach
+	 * listeners as their decoding completes, which may not be the order they arrived in. See DecodingPacketListener.
+	 * <p>This applies to listeners added after the call. It has no effect on listeners added while a listener
+	 * executor is set (see setListenerExecutor()): they already run, and so decode, off Smack's thread,
+	 * in parallel across senders and in order for each sender.</p>
+	 * @param executor the executor to decode on, or null to decode on whatever thread first reads a payload (the default)
+	 */
+	public void setDecodeExecutor(Executor executor) {
+		this.decodeExecutor = executor;
+	}
+
+	/**
+	 * Set the packet listener and filter on a SimpleXMPPConnection.
+	 * The pair is remembered, and attached again whenever the connection is re-established.
+	 * If a listener executor is set (see setListenerExecutor()) the listener runs on that.
 	 * @param packetListener an initialized PacketListener
 	 * @param packetFilter an initialized PacketFilter
-	 * @throws SimpleXMPPException if the connection is not open or otherwise cannot be 
+	 * @throws SimpleXMPPException if the connection is not open (and not in the middle of reconnecting)
 	 */
 	public void addPacketListenerAndFilter(PacketListener packetListener,PacketFilter packetFilter)
 	throws SimpleXMPPException {
-		if ( (xmppConnection == null) || (! xmppConnection.isConnected()) )
-			throw new SimpleXMPPException("XMPP connection is not open. Cannot set listener and filter.");
-		xmppConnection.addPacketListener(packetListener,packetFilter);
-		packetListeners.add(packetListener);
+		PerSenderExecutor executor = listenerExecutor;
+		Executor decoder = decodeExecutor;
+		PacketListener attached = packetListener;
+		if (executor != null)
+			attached = new OrderedPacketListener(packetListener,executor);
+		else if (decoder != null)
+			attached = new DecodingPacketListener(packetListener,decoder);
+		ListenerRegistration reg = new ListenerRegistration(packetFilter,attached);
+		// under the lock that secureConnect() copies the registrations under, so a reconnect can't miss this one
+		synchronized (packetListeners) {
+			XMPPConnection conn = xmppConnection;
+			boolean live = (conn != null) && conn.isConnected();
+			if ((! live) && (! reconnecting))
+				throw new SimpleXMPPException("XMPP connection is not open. Cannot set listener and filter.");
+			ListenerRegistration old = packetListeners.put(packetListener,reg);
+			// a reconnect may already have attached the new connection, and be draining with 'reconnecting' still set
+			if (live) {
+				if (old != null)
+					conn.removePacketListener(old.attached);
+				conn.addPacketListener(reg.attached,reg.filter);
+			}
+		}
 	}
 
 	/**
@@ -113,10 +244,15 @@ public class SimpleXMPPConnection {
 	 */
 	public void removePacketListenerAndFilter(PacketListener packetListener)
 	throws SimpleXMPPException {
-		if ( (xmppConnection == null) || (! xmppConnection.isConnected()) )
-			throw new SimpleXMPPException("XMPP connection is not open. Cannot remove packetListener.");
-		xmppConnection.removePacketListener(packetListener);
-		packetListeners.remove(packetListener);
+		synchronized (packetListeners) {
+			XMPPConnection conn = xmppConnection;
+			boolean live = (conn != null) && conn.isConnected();
+			if ((! live) && (! reconnecting))
+				throw new SimpleXMPPException("XMPP connection is not open. Cannot remove packetListener.");
+			ListenerRegistration reg = packetListeners.remove(packetListener);
+			if (live)
+				conn.removePacketListener((reg != null) ? reg.attached : packetListener);
+		}
 	}
 
 
@@ -132,6 +268,148 @@ public class SimpleXMPPConnection {
 	}
 
 
+	/**
+	 * Set whether secureConnect() returns as soon as login is done, leaving the roster to load in the background.
+	 * Sends with onlyIfOnline=true block until the roster has arrived. False is the default.
+	 * @param setTo true to load the roster in the background
+	 */
+	public void setBackgroundRosterLoad(boolean setTo) {
+		this.backgroundRosterLoad = setTo;
+	}
+
+	/**
+	 * @return the time spent in each phase of the most recent secureConnect()
+	 */
+	public ConnectTimings getConnectTimings() {
+		return connectTimings;
+	}
+
+
+	/**
+	 * Set how the connection recovers when it is lost. ReconnectPolicy.DEFAULT is the default.
+	 * Call this before secureConnect(): packets already held for sending are discarded.
+	 * @param policy the reconnect policy. ReconnectPolicy.NEVER turns automatic reconnect off.
+	 */
+	public void setReconnectPolicy(ReconnectPolicy policy) {
+		this.reconnectPolicy = policy;
+		this.outboundQueue = new ArrayBlockingQueue <Packet> (Math.max(1,policy.getQueueCapacity()));
+	}
+
+	/**
+	 * Turn write coalescing on or off. When on, sends are queued to a single writer thread, which
+	 * combines up to maxBatch queued stanzas into one socket write, waiting up to linger msec for
+	 * a batch to fill. This saves syscalls and TLS records when many threads send small packets,
+	 * at the price of up to linger msec of added latency. Off is the default.
+	 * Call this before secureConnect().
+	 * @param maxBatch the most stanzas per write. 1 or less turns coalescing off.
+	 * @param linger msec to wait for a batch to fill. 0 batches only what is already queued.
+	 * @throws IllegalStateException if the connection is open or reconnecting
+	 */
+	public void setOutboundBatching(int maxBatch, long linger) {
+		checkOutboundChangeable();
+		this.outboundMaxBatch = maxBatch;
+		this.outboundLinger = linger;
+		configureOutboundPipeline();
+	}
+
+	/**
+	 * Turn priority scheduling of outbound packets on or off. When on, sends are queued to a single
+	 * writer thread (as with setOutboundBatching()) through a PriorityOutboundScheduler, which sends packets
+	 * with a higher RPC priority first. A packet's priority rises by one for every agingInterval msec it
+	 * has waited, so low-priority traffic is delayed but never starved. Off is the default.
+	 * Call this before secureConnect().
+	 * <p>Only packets waiting in this class's queue are reordered. Once handed to Smack, they are written in order.</p>
+	 * @param agingInterval msec of waiting worth one priority step. 0 turns priority scheduling off.
+	 * @throws IllegalStateException if the connection is open or reconnecting
+	 */
+	public void setOutboundPriorityAging(long agingInterval) {
+		checkOutboundChangeable();
+		this.outboundAging = agingInterval;
+		configureOutboundPipeline();
+	}
+
+	/**
+	 * secureConnect() starts the pipeline, so it can't be swapped under a connection that is in use
+	 */
+	private void checkOutboundChangeable() {
+		if ((xmppConnection != null) || reconnecting)
+			throw new IllegalStateException("Outbound batching and priority scheduling can only be changed before secureConnect()");
+	}
+
+	/**
+	 * Build (or remove) the outbound pipeline to match the batching and priority settings
+	 */
+	private void configureOutboundPipeline() {
+		if (outboundPipeline != null)
+			outboundPipeline.stop();
+		if ((outboundMaxBatch <= 1) && (outboundAging <= 0)) {
+			outboundPipeline = null;
+			return;
+		}
+		OutboundPipeline.Sink sink = new OutboundPipeline.Sink() {
+			public void write(Packet p) {
+				writeToConnection(p);
+			}
+		};
+		int maxBatch = Math.max(1,outboundMaxBatch);
+		if (outboundAging > 0)
+			outboundPipeline = new OutboundPipeline(sink, maxBatch, outboundLinger, 
+					new PriorityOutboundScheduler(outboundAging, OutboundPipeline.CAPACITY_DEFAULT));
+		else
+			outboundPipeline = new OutboundPipeline(sink, maxBatch, outboundLinger, OutboundPipeline.CAPACITY_DEFAULT);
+		outboundPipeline.setVerbose(verbose);
+	}
+
+	/**
+	 * @return the outbound pipeline, or null if write coalescing and priority scheduling are both off.
+	 * With priority scheduling on, getOutboundPipeline().getQueue() is the PriorityOutboundScheduler and carries its metrics.
+	 */
+	public OutboundPipeline getOutboundPipeline() {
+		return outboundPipeline;
+	}
+
+	/**
+	 * @return true if the connection was lost and is being re-established
+	 */
+	public boolean isReconnecting() {
+		return reconnecting;
+	}
+
+
+	/**
+	 * Replace the presence cache used for online checks. Call this before secureConnect().
+	 * <p>Correspondents that the connection had to add to its roster (to learn their presence) are
+	 * removed from the roster again, on a pass every pruneInterval msec, once nothing has been sent to them
+	 * for ttl msec... so the roster keeps only the correspondents in use.</p>
+	 * @param maxEntries the most correspondents whose presence is cached
+	 * @param ttl msec a cached presence stays valid without being refreshed by the server, and an added correspondent may stay idle
+	 * @param pruneInterval msec between roster pruning passes
+	 */
+	public void setPresenceCache(int maxEntries, long ttl, long pruneInterval) {
+		this.presenceCache = new PresenceCache(maxEntries,ttl);
+		this.rosterPruneInterval = pruneInterval;
+	}
+
+	/**
+	 * @return the presence cache used for online checks
+	 */
+	public PresenceCache getPresenceCache() {
+		return presenceCache;
+	}
+
+	/**
+	 * Use owner's presence cache and record of added correspondents, and leave pruning the roster to owner.
+	 * For connections logged in to one account, which share one roster on the server: a connection pruning on
+	 * its own could remove a correspondent another one is still sending to. Call this before secureConnect()
+	 * @param owner the connection that prunes the roster for all of them
+	 */
+	void shareRosterStateOf(SimpleXMPPConnection owner) {
+		this.presenceCache = owner.presenceCache;
+		this.autoRosterEntries = owner.autoRosterEntries;
+		this.rosterPruning = false;
+	}
+
+
 	/**
 	 * Connect securely to the server named in the constructor, log in using username and password, and 
 	 * NOT setting a resource name.
@@ -161,6 +439,10 @@ public class SimpleXMPPConnection {
 	 */
 	public void secureConnect()
 	throws SimpleXMPPException {
+		final ConnectTimings timings = new ConnectTimings();
+		this.connectTimings = timings;
+		long start = System.currentTimeMillis();
+		boolean connected = false;
 		try {
 			if (verbose)
 				System.out.println("Opening XMPP communications");
@@ -176,32 +458,63 @@ public class SimpleXMPPConnection {
 				ConnectionConfiguration cc = new ConnectionConfiguration(xmppConfig.getHost(),xmppConfig.getPort(),xmppConfig.getService());
 				cc.setSecurityMode(ConnectionConfiguration.SecurityMode.required);
 				cc.setSelfSignedCertificateEnabled(allowSelfSigned);
+				cc.setReconnectionAllowed(false); // reconnects are managed here, see ReconnectPolicy
 				xmppConnection = new XMPPConnection(cc);
 				xmppConnection.connect();
 			}
-			// sleep briefly to let connection get going (recommended by someone in a newsgroup ha ha ha why not)
-			try { Thread.sleep(1000); } catch (InterruptedException ie) { }
+			long mark = System.currentTimeMillis();
+			timings.setConnectMillis(mark - start);
 
+			// connect() returns once the stream is open, and TLS is negotiated after that on Smack's reader thread
+			awaitTLS(SmackConfiguration.getPacketReplyTimeout());
 			if (! xmppConnection.isSecureConnection())
 				throw new SimpleXMPPException("Connection established, but it is not secure.");
 			if (! xmppConnection.isUsingTLS())
 				throw new SimpleXMPPException("Connection established, but it is not using TLS.");
+			timings.setTLSMillis(System.currentTimeMillis() - mark);
+			mark = System.currentTimeMillis();
+
+			// attach before login, so that no reply or presence packet arriving right after login is missed
+			// one listener matches all replies for sendIQAsync() and sendIQgetIQ()
+			xmppConnection.addPacketListener(replyCorrelator,replyCorrelator);
+			xmppConnection.addPacketListener(presenceCache,presenceCache);
+			// and any listeners added before (e.g. on the connection this one replaces)
+			synchronized (packetListeners) {
+				Iterator <ListenerRegistration> it = packetListeners.values().iterator();
+				while (it.hasNext()) {
+					ListenerRegistration reg = it.next();
+					xmppConnection.addPacketListener(reg.attached,reg.filter);
+				}
+			}
+			xmppConnection.addConnectionListener(connectionMonitor);
 
 			if (verbose)
 				System.out.println("Logging in with username:"+xmppConfig.getUsername()+" and resource:"+xmppConfig.getResource());
+			// login() returns only after authentication and resource binding have completed
 			xmppConnection.login(xmppConfig.getUsername(), xmppConfig.getPassword(),xmppConfig.getResource(),false);
-
+			if (! xmppConnection.isAuthenticated())
+				throw new SimpleXMPPException("Login returned, but the connection is not authenticated.");
 			if (verbose)
 				System.out.println("Logged in.");
-
-			// sleep briefly to let connection get going (recommended by someone in a newsgroup ha ha ha why not)
-			try { Thread.sleep(1000); } catch (InterruptedException ie) { }
-
-			if (verbose)
-				System.out.println("Getting roster.");
-			roster = xmppConnection.getRoster();
+			timings.setLoginMillis(System.currentTimeMillis() - mark);
+
+			rosterLoad = new CompletableFuture <Roster> ();
+			if (backgroundRosterLoad) {
+				final XMPPConnection conn = xmppConnection;
+				new DaemonThreadFactory("SimpleXMPPConnection-roster").newThread(new Runnable() {
+					public void run() {
+						loadRoster(conn, timings);
+					}
+				}).start();
+			}
+			else
+				loadRoster(xmppConnection, timings);
+			if (outboundPipeline != null)
+				outboundPipeline.start();
+			timings.setTotalMillis(System.currentTimeMillis() - start);
 			if (verbose)
-				System.out.println("Got roster:"+roster.getEntries());
+				System.out.println("Connect timings: "+timings);
+			connected = true;
 		}
 		catch (XMPPException xmppe) {
 			String msg = xmppe.getMessage();
@@ -215,21 +528,311 @@ public class SimpleXMPPConnection {
 				msg = "IOException "+msg;
 			throw new SimpleXMPPException("XMPPException: "+msg);
 		}
+		finally {
+			// a failed attempt must not leave its socket, threads and listeners behind, least of all on every reconnect attempt
+			if ((! connected) && (xmppConnection != null)) {
+				retire(xmppConnection);
+				xmppConnection = null;
+				rosterLoad = null;
+			}
+		}
 	}
 
+	/**
+	 * Detach this object's listeners from conn
+	 */
+	private void detach(XMPPConnection conn) {
+		conn.removeConnectionListener(connectionMonitor);
+		synchronized (packetListeners) {
+			Iterator <ListenerRegistration> it = packetListeners.values().iterator();
+			while (it.hasNext()) 
+				conn.removePacketListener(it.next().attached);
+		}
+		conn.removePacketListener(replyCorrelator);
+		conn.removePacketListener(presenceCache);
+	}
+
+	/**
+	 * Detach from conn and close it, quietly, because it is dead or half-open
+	 */
+	private void retire(XMPPConnection conn) {
+		detach(conn);
+		try { // a closed connection might still be trying to reconnect on its own. This stops it
+			conn.disconnect();
+		}
+		catch (RuntimeException re) { }
+	}
 
 
 
 
 
+
+	/**
+	 * Wait until the connection reports TLS in use, or until timeout msec have passed
+	 * @param timeout msec to wait
+	 */
+	private void awaitTLS(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while ( (! xmppConnection.isUsingTLS()) && xmppConnection.isConnected() && (System.currentTimeMillis() < deadline) ) {
+			try {
+				Thread.sleep(TLS_POLL_INTERVAL);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
 	/**
-	 * Set the presence type in this class to 'pt' and send presence status to the server
+	 * Fetch the roster (Smack's getRoster() waits for the server to deliver it), then start roster pruning
+	 * and release anyone waiting in awaitRoster()
+	 * @param conn the connection to fetch the roster from
+	 * @param timings where to record the time taken
+	 */
+	private void loadRoster(XMPPConnection conn, ConnectTimings timings) {
+		long mark = System.currentTimeMillis();
+		if (verbose)
+			System.out.println("Getting roster.");
+		CompletableFuture <Roster> load = rosterLoad;
+		try {
+			Roster r = conn.getRoster();
+			roster = r;
+			timings.setRosterMillis(System.currentTimeMillis() - mark);
+			if (verbose)
+				System.out.println("Got roster:"+r.getEntries());
+			if (rosterPruning)
+				startRosterPruner();
+			load.complete(r);
+		}
+		catch (RuntimeException re) {
+			load.completeExceptionally(re);
+			if (! backgroundRosterLoad)
+				throw re;
+		}
+	}
+
+	/**
+	 * @return the roster, waiting for it if it is still being loaded in the background
+	 * @throws SimpleXMPPException if the connection is not open, or the roster could not be loaded
+	 */
+	private Roster awaitRoster()
+	throws SimpleXMPPException {
+		CompletableFuture <Roster> load = rosterLoad;
+		if (load == null)
+			throw new SimpleXMPPException("XMPP connection is not open. No roster.");
+		try {
+			return load.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new SimpleXMPPException("Interrupted while waiting for the roster");
+		}
+		catch (ExecutionException ee) {
+			throw new SimpleXMPPException("Roster could not be loaded: "+ee.getCause());
+		}
+	}
+
+
+	/**
+	 * Listens for the connection being lost, and starts the reconnect loop
+	 */
+	private class ConnectionMonitor
+	implements ConnectionListener {
+		public void connectionClosed() {
+			// closed on purpose, by disconnect()
+		}
+
+		public void connectionClosedOnError(Exception e) {
+			if (verbose)
+				System.out.println("Connection lost: "+e.getMessage());
+			if (reconnectPolicy.isEnabled())
+				startReconnect();
+		}
+
+		// Smack's own reconnection is turned off. These are never called.
+		public void reconnectingIn(int seconds) {
+		}
+
+		public void reconnectionSuccessful() {
+		}
+
+		public void reconnectionFailed(Exception e) {
+		}
+	}
+
+	/**
+	 * Retire the lost connection and schedule the first reconnect attempt
+	 */
+	private void startReconnect() {
+		synchronized (outboundQueue) {
+			if (reconnecting)
+				return;
+			reconnecting = true;
+		}
+		XMPPConnection lost = xmppConnection;
+		if (lost != null)
+			retire(lost);
+		reconnectAttempts = 0;
+		scheduleReconnect();
+	}
+
+	private void scheduleReconnect() {
+		long delay = reconnectPolicy.nextDelay(reconnectAttempts);
+		if (verbose)
+			System.out.println("Reconnect attempt "+(reconnectAttempts+1)+" in "+delay+" msec");
+		reconnector.schedule(new Runnable() {
+			public void run() {
+				attemptReconnect();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * One reconnect attempt. On success, restore presence and send everything that was held while
+	 * the connection was down. On failure, schedule the next attempt.
+	 */
+	private void attemptReconnect() {
+		if (! reconnecting) // disconnect() was called in the meantime
+			return;
+		try {
+			secureConnect();
+		}
+		catch (Exception e) {
+			if (verbose)
+				System.out.println("Reconnect attempt "+(reconnectAttempts+1)+" failed: "+e.getMessage());
+			reconnectAttempts++;
+			if (reconnecting)
+				scheduleReconnect();
+			return;
+		}
+		if (! reconnecting) { // disconnect() was called while this attempt was connecting
+			disconnect();
+			return;
+		}
+		XMPPConnection conn = xmppConnection;
+		try {
+			if (currentPresence.getType() == Presence.Type.available)
+				conn.sendPacket(currentPresence);
+			// drain under the lock, so a packet queued by a concurrent send can't be left behind.
+			// A packet leaves the queue only once it has been sent, so if the new link drops, the rest wait for the next one
+			synchronized (outboundQueue) {
+				Packet p;
+				while ((p = outboundQueue.peek()) != null) {
+					conn.sendPacket(p);
+					outboundQueue.poll();
+				}
+				reconnecting = false;
+			}
+		}
+		catch (RuntimeException re) { // the new connection was lost already. reconnecting is still set, so its close event did nothing
+			if (verbose)
+				System.out.println("Connection lost again while restoring it: "+re.getMessage());
+			retire(conn);
+			reconnectAttempts++;
+			if (reconnecting)
+				scheduleReconnect();
+			return;
+		}
+		if (verbose)
+			System.out.println("Reconnected after "+(reconnectAttempts+1)+" attempt(s)");
+		// lost again before reconnecting was cleared: its close event was ignored, so start over here
+		if ((! conn.isConnected()) && reconnectPolicy.isEnabled())
+			startReconnect();
+	}
+
+
+	/**
+	 * Every outbound packet goes through here. While a reconnect is under way the packet 
+	 * is held in the outbound queue, to be sent once the connection is back.
+	 * @param p the packet to send
+	 * @throws SimpleXMPPException if the connection is not open, or it is down and the outbound queue is full
+	 */
+	private void deliver(Packet p)
+	throws SimpleXMPPException {
+		if (! reconnecting) {
+			XMPPConnection conn = xmppConnection;
+			if (conn == null)
+				throw new SimpleXMPPException("XMPP connection is not open.");
+			if (outboundPipeline != null) {
+				outboundPipeline.submit(p);
+				return;
+			}
+			try {
+				conn.sendPacket(p);
+				return;
+			}
+			catch (IllegalStateException ise) { // not connected: lost before connectionClosedOnError() was called
+				if (! reconnectPolicy.isEnabled())
+					throw new SimpleXMPPException("XMPP connection is not open: "+ise.getMessage());
+				startReconnect(); // does nothing if connectionClosedOnError() got there first
+			}
+		}
+		synchronized (outboundQueue) {
+			if (! reconnecting) { // reconnected while we waited for the lock
+				xmppConnection.sendPacket(p);
+				return;
+			}
+			if (! outboundQueue.offer(p))
+				throw new SimpleXMPPException("XMPP connection is down and the outbound queue is full ("+outboundQueue.size()+" packets)");
+		}
+	}
+
+	/**
+	 * Called on the outbound pipeline's writer thread. If the connection was lost after the
+	 * packets were queued, they are held for the reconnect like any other send.
+	 * @param p a packet or StanzaBatch from the pipeline
+	 */
+	private void writeToConnection(Packet p) {
+		XMPPConnection conn = xmppConnection;
+		if (! reconnecting) {
+			if (conn == null)
+				throw new IllegalStateException("XMPP connection is not open.");
+			try {
+				conn.sendPacket(p);
+				return;
+			}
+			catch (IllegalStateException ise) { // not connected
+				if (! reconnectPolicy.isEnabled())
+					throw ise;
+				startReconnect(); // does nothing if connectionClosedOnError() got there first
+			}
+		}
+		synchronized (outboundQueue) {
+			if (! reconnecting) { // reconnected while we waited for the lock
+				xmppConnection.sendPacket(p);
+				return;
+			}
+			if (p instanceof StanzaBatch) {
+				for (Packet bp : ((StanzaBatch) p).getPackets()) {
+					if ((! outboundQueue.offer(bp)) && verbose)
+						System.out.println("Outbound queue full, packet dropped: "+bp.getPacketID());
+				}
+			}
+			else if ((! outboundQueue.offer(p)) && verbose)
+				System.out.println("Outbound queue full, packet dropped: "+p.getPacketID());
+		}
+	}
+
+	/**
+	 * @return the number of packets being held until the connection is re-established
+	 */
+	public int getQueuedPacketCount() {
+		return outboundQueue.size();
+	}
+
+
+	/**
+	 * Set the presence type in this class to 'pt' and send presence status to the server.
+	 * While the connection is being re-established, the new presence is sent once it is back.
 	 * @param pt
 	 */
 	public void sendPresence(Presence.Type pt,Presence.Mode pm) {
 		currentPresence.setType(pt);
 		currentPresence.setMode(pm);
-		xmppConnection.sendPacket(currentPresence);
+		if (! reconnecting)
+			xmppConnection.sendPacket(currentPresence);
 	}
 
 
@@ -262,19 +865,13 @@ public class SimpleXMPPConnection {
 
 		try {
 			// only send message if user is online
-			if (onlyIfOnline) {
-				if (! roster.contains(to))
-					roster.createEntry(to,to,null);
-				Presence pres = roster.getPresence(to);
-				if (pres.getType() != Presence.Type.available) {
-					throw new SimpleXMPPException("Not available: "+to);
-				}
-			}
+			if (onlyIfOnline)
+				checkOnline(to);
 			// send the message
 			Message m = new Message();
 			m.setTo(newTo);
 			m.setBody(message);
-			xmppConnection.sendPacket(m);
+			deliver(m);
 		}
 		catch (Exception e) {
 			throw new SimpleXMPPException(e.getLocalizedMessage());
@@ -310,19 +907,11 @@ public class SimpleXMPPConnection {
 	public void sendIQ(String to,IQ iq,boolean onlyIfOnline)
 	throws SimpleXMPPException {
 		try {
-			if (onlyIfOnline) {
-				// only send message if user is online
-				if (! roster.contains(to))
-					roster.createEntry(to,to,null);
-				Presence pres = roster.getPresence(to);
-				if (verbose)
-					System.out.println("Presence of "+to+" is "+pres.getStatus());
-				if (pres.getType() != Presence.Type.available) {
-					throw new SimpleXMPPException("Not available: "+to);
-				}
-			}
+			// only send message if user is online
+			if (onlyIfOnline)
+				checkOnline(to);
 			iq.setTo(to);
-			xmppConnection.sendPacket(iq);
+			deliver(iq);
 		}
 		catch (Exception e) {
 			throw new SimpleXMPPException(e.getLocalizedMessage());
@@ -330,6 +919,93 @@ public class SimpleXMPPConnection {
 	}
 
 
+	/**
+	 * Check that 'to' is online, throwing an exception if not.
+	 * The presence cache answers without any network traffic. Only on a cache miss is the roster consulted,
+	 * and only for a correspondent not yet on the roster is an entry created (a subscription round trip).
+	 * @param to the addressee
+	 * @throws SimpleXMPPException if the addressee is not available
+	 * @throws XMPPException if a roster entry could not be created for the addressee
+	 */
+	private void checkOnline(String to)
+	throws SimpleXMPPException, XMPPException {
+		String bareTo = StringUtils.parseBareAddress(to);
+		// a send is a use: the pruner leaves an added correspondent on the roster while it is being sent to
+		autoRosterEntries.replace(bareTo, Long.valueOf(System.currentTimeMillis()));
+		Presence.Type type = presenceCache.lookup(to);
+		if (type == null) {
+			Roster r = awaitRoster();
+			boolean created = false;
+			if (! r.contains(bareTo)) {
+				r.createEntry(bareTo,bareTo,null);
+				autoRosterEntries.put(bareTo, Long.valueOf(System.currentTimeMillis()));
+				created = true;
+			}
+			Presence pres = r.getPresence(bareTo);
+			if (verbose)
+				System.out.println("Presence of "+to+" is "+pres.getStatus());
+			type = pres.getType();
+			// a new entry reads unavailable until the subscription is answered. That isn't the answer yet, so don't keep it
+			if ((! created) || (type == Presence.Type.available))
+				presenceCache.update(bareTo,type);
+		}
+		if (type != Presence.Type.available)
+			throw new SimpleXMPPException("Not available: "+to);
+	}
+
+
+	/**
+	 * Start the background task that removes roster entries this class created, once their JIDs have been idle for the presence cache's TTL
+	 */
+	private void startRosterPruner() {
+		if (rosterPruner != null)
+			rosterPruner.cancel(false);
+		rosterPruner = scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				pruneRoster();
+			}
+		}, rosterPruneInterval, rosterPruneInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Remove from the roster the correspondents this class added that nothing has been sent to for the presence cache's TTL.
+	 * Pruning goes by last use, not by the cache: a correspondent that stays online pushes no presence, so its
+	 * cache entry expires even while it is being sent to, and removing it would cancel the subscription in use
+	 */
+	private void pruneRoster() {
+		Roster r = roster;
+		if (r == null)
+			return;
+		presenceCache.purgeExpired();
+		long idleSince = System.currentTimeMillis() - presenceCache.getTTL();
+		Iterator <Map.Entry <String, Long>> it = autoRosterEntries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry <String, Long> added = it.next();
+			String jid = added.getKey();
+			if (added.getValue().longValue() > idleSince)
+				continue;
+			try {
+				RosterEntry entry = r.getEntry(jid);
+				if (entry != null)
+					r.removeEntry(entry);
+				// only if it wasn't sent to while it was being removed
+				autoRosterEntries.remove(jid, added.getValue());
+				presenceCache.invalidate(jid);
+				if (verbose)
+					System.out.println("Pruned from roster: "+jid);
+			}
+			catch (XMPPException xmppe) {
+				if (verbose)
+					System.out.println("Could not prune "+jid+" from roster: "+xmppe.getMessage());
+			}
+			catch (RuntimeException re) { // don't let one failure end the scheduled pruning task
+				if (verbose)
+					System.out.println("Could not prune "+jid+" from roster: "+re);
+			}
+		}
+	}
+
+
 	/**
 	 * Send an IQ packet via the server. If an exception is thrown, discard it.
 	 * This convenience method is intended for advisory messages that might be
@@ -350,8 +1026,9 @@ public class SimpleXMPPConnection {
 
 
 	/**
-	 * Send an IP packet via the server, then wait for and return the reply packet.
-	 * The "reply" is recognized as a packet having the same packetID as the sent packet, coming from the JID to which the first packet was sent.
+	 * Send an IQ packet via the server, then wait for and return the reply packet.
+	 * The "reply" is recognized as a packet having the same packetID as the sent packet.
+	 * This is a blocking wrapper around sendIQAsync().
 	 * @param to	addressee
 	 * @param iq	the IQ packet to send
 	 * @param onlyIfOnline if true, check recipient's online status before sending. If recipient is not online, don't send the packet, but throw a SimpleXMPPException instead
@@ -362,27 +1039,66 @@ public class SimpleXMPPConnection {
 	 */
 	public IQ sendIQgetIQ(String to, IQ iq, boolean onlyIfOnline, long timeout)
 	throws SimpleXMPPException, TimeoutException {
-		// set up a PacketCollector to receive only the response desired
-		PacketIDFilter pf = new PacketIDFilter(iq.getPacketID()); 
-		PacketCollector pc = xmppConnection.createPacketCollector(pf);
-		// send the packet
-		sendIQ(to,iq,onlyIfOnline);
-		// block for the response. Return it if received, or throw exception if not
-		Packet p = pc.nextResult(timeout);
-		// if timeout, nextResult() returns null
-		if (p == null) {
-			throw new TimeoutException("sendIQgetIQ reply packet not received within "+timeout+" msec");
+		try {
+			return sendIQAsync(to,iq,onlyIfOnline,timeout).get();
+		}
+		catch (InterruptedException ie) {
+			replyCorrelator.fail(iq.getPacketID(),ie);
+			Thread.currentThread().interrupt();
+			throw new SimpleXMPPException("sendIQgetIQ interrupted while waiting for reply");
 		}
-		if (! (p instanceof IQ)) {
-			throw new SimpleXMPPException("sendIQgetIQ reply packet received was not an IQ packet");
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if (cause instanceof TimeoutException)
+				throw new TimeoutException("sendIQgetIQ reply packet not received within "+timeout+" msec");
+			if (cause instanceof SimpleXMPPException)
+				throw (SimpleXMPPException) cause;
+			throw new SimpleXMPPException("sendIQgetIQ "+cause);
 		}
-		pc.cancel();
-		return (IQ) p;
 	}
 
 
+	/**
+	 * Send an IQ packet via the server without blocking. The returned future completes with the reply packet,
+	 * recognized as a packet having the same packetID as the sent packet... or fails with a 
+	 * TimeoutException if no reply arrives in time, or with a SimpleXMPPException if sending failed
+	 * or the reply was not an IQ.
+	 * <p>All outstanding requests share one reply listener on the connection, so any number of them
+	 * can be in flight at once without slowing down the handling of other packets.</p>
+	 * @param to	addressee
+	 * @param iq	the IQ packet to send
+	 * @param onlyIfOnline if true, check recipient's online status before sending. If recipient is not online, the future fails with a SimpleXMPPException
+	 * @param timeout msec to wait for the reply
+	 * @return a future that completes with the reply packet
+	 */
+	public CompletableFuture <IQ> sendIQAsync(String to, IQ iq, boolean onlyIfOnline, long timeout) {
+		CompletableFuture <IQ> reply;
+		try {
+			// register for the reply before sending, so a fast reply can't be missed
+			reply = replyCorrelator.expect(iq.getPacketID(),timeout);
+		}
+		catch (SimpleXMPPException sxe) {
+			reply = new CompletableFuture <IQ> ();
+			reply.completeExceptionally(sxe);
+			return reply;
+		}
+		try {
+			sendIQ(to,iq,onlyIfOnline);
+		}
+		catch (SimpleXMPPException sxe) {
+			replyCorrelator.fail(iq.getPacketID(),sxe);
+		}
+		return reply;
+	}
 
 
+	/**
+	 * @return the number of sendIQAsync() / sendIQgetIQ() requests still waiting for their reply
+	 */
+	public int getPendingReplyCount() {
+		return replyCorrelator.getPendingCount();
+	}
+
 
 
 	/**
@@ -395,20 +1111,34 @@ public class SimpleXMPPConnection {
 
 
 	/**
-	 * Disconnect from the server, close the connection and null out the connection state
+	 * Disconnect from the server, close the connection and null out the connection state.
+	 * Stops any reconnect in progress, and discards packets that were held for sending.
 	 */
 	public void disconnect() {
 		if (verbose)
 			System.out.println("Disconnecting");
-		if ((xmppConnection != null) && (xmppConnection.isConnected())) {
-			this.currentPresence.setType(Presence.Type.unavailable);
-			this.currentPresence.setMode(Presence.Mode.away);
-			Iterator <PacketListener> it = packetListeners.iterator();
-			while (it.hasNext()) 
-				xmppConnection.removePacketListener(it.next());
-			xmppConnection.disconnect(this.currentPresence);
+		synchronized (outboundQueue) {
+			reconnecting = false;
+			outboundQueue.clear();
+		}
+		if (outboundPipeline != null)
+			outboundPipeline.stop(); // writes out whatever is still queued
+		this.currentPresence.setType(Presence.Type.unavailable);
+		this.currentPresence.setMode(Presence.Mode.away);
+		XMPPConnection conn = xmppConnection;
+		if (conn != null) {
+			detach(conn);
+			// the connection may be the dead one a reconnect was replacing: only a live one is told goodbye
+			if (conn.isConnected())
+				conn.disconnect(this.currentPresence);
 			xmppConnection = null;
 		}
+		if (rosterPruner != null) {
+			rosterPruner.cancel(false);
+			rosterPruner = null;
+		}
+		rosterLoad = null;
+		replyCorrelator.cancelAll(new SimpleXMPPException("Connection closed before reply was received"));
 	}		
 
 	
@@ -0,0 +1,280 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.smack.PacketListener;
+import org.jivesoftware.smack.filter.PacketFilter;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+import org.jivesoftware.smack.packet.Presence;
+
+/**
+ * A set of SimpleXMPPConnections that log the same account in under different resources,
+ * for more outbound throughput than one TCP/TLS stream (with its single writer thread) can carry.
+ * <p>Each send goes out on the member with the fewest outstanding requests: sends in progress,
+ * plus replies awaited by sendIQAsync()/sendIQgetIQ(), plus packets held during a reconnect.
+ * A reply comes back to the resource that sent the request, so it is matched up by that member.</p>
+ * <p>Listeners added to the pool are added to every member, so they see the inbound traffic of
+ * all of them as a single stream. Presence sent to the account reaches every resource, so listeners get
+ * presence packets from one member only: the first that isn't reconnecting.</p>
+ * <p>The members share one roster on the server, so they also share one presence cache and one record of the
+ * correspondents added to the roster, and only member 0 prunes the roster (see SimpleXMPPConnection.setPresenceCache()).</p>
+ *
+ * @author jim
+ *
+ */
+public class SimpleXMPPConnectionPool {
+
+	public static final String RESOURCE_DEFAULT = "pool";
+
+	private final SimpleXMPPConnection[] members;
+	private final AtomicInteger[] sendsInProgress;
+	private final AtomicInteger nextStart; // rotates the starting point of the search, so ties are spread around
+
+
+	/**
+	 * Make a pool of 'size' connections for the account in config. Member i logs in with the resource
+	 * "resource-i", where resource is the one in config (or RESOURCE_DEFAULT if config has none).
+	 * @param config the account and server settings, shared by all members
+	 * @param size the number of connections
+	 * @param allowSelfSigned true to accept self-signed server certificates
+	 */
+	public SimpleXMPPConnectionPool(XMPPConfig config, int size, boolean allowSelfSigned) {
+		if (size < 1)
+			throw new IllegalArgumentException("Pool size must be at least 1");
+		String resource = (config.getResource() != null) ? config.getResource() : RESOURCE_DEFAULT;
+		members = new SimpleXMPPConnection[size];
+		sendsInProgress = new AtomicInteger[size];
+		for (int i = 0; i < size; i++) {
+			XMPPConfig memberConfig = new XMPPConfig(config.getHost(), config.getPort(), resource+"-"+i,
+					config.getService(), config.getUsername(), config.getPassword());
+			members[i] = new SimpleXMPPConnection(memberConfig, allowSelfSigned);
+			sendsInProgress[i] = new AtomicInteger(0);
+		}
+		shareRosterState();
+		nextStart = new AtomicInteger(0);
+	}
+
+	private void shareRosterState() {
+		for (int i = 1; i < members.length; i++)
+			members[i].shareRosterStateOf(members[0]);
+	}
+
+
+	/**
+	 * Set VERBOSE status for progress log on every member
+	 * @param setTo true for verbose, false otherwise. False is the default.
+	 */
+	public void setVerbose(boolean setTo) {
+		for (SimpleXMPPConnection m : members)
+			m.setVerbose(setTo);
+	}
+
+	/**
+	 * Connect and log in every member. If one fails, those already connected are disconnected again.
+	 * Like SimpleXMPPConnection.secureConnect(), this does not send presence.
+	 * @throws SimpleXMPPException if any member could not connect
+	 */
+	public void secureConnect()
+	throws SimpleXMPPException {
+		for (int i = 0; i < members.length; i++) {
+			try {
+				members[i].secureConnect();
+			}
+			catch (SimpleXMPPException sxe) {
+				disconnect();
+				throw new SimpleXMPPException("Pool member "+i+" could not connect: "+sxe.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Disconnect every member
+	 */
+	public void disconnect() {
+		for (SimpleXMPPConnection m : members)
+			m.disconnect();
+	}
+
+	/**
+	 * Send presence on every member
+	 */
+	public void sendPresence(Presence.Type pt,Presence.Mode pm) {
+		for (SimpleXMPPConnection m : members)
+			m.sendPresence(pt,pm);
+	}
+
+
+	/**
+	 * Replace the presence cache the members share. Call this before secureConnect(). See SimpleXMPPConnection.setPresenceCache()
+	 */
+	public void setPresenceCache(int maxEntries, long ttl, long pruneInterval) {
+		members[0].setPresenceCache(maxEntries,ttl,pruneInterval);
+		shareRosterState();
+	}
+
+
+	/**
+	 * Run every member's listeners on executor. See SimpleXMPPConnection.setListenerExecutor()
+	 * @param executor the executor to share among the members, or null to run listeners on Smack's threads
+	 */
+	public void setListenerExecutor(Executor executor) {
+		for (SimpleXMPPConnection m : members)
+			m.setListenerExecutor(executor);
+	}
+
+	/**
+	 * Decode lazy payloads for every member's listeners on executor. See SimpleXMPPConnection.setDecodeExecutor()
+	 * @param executor the executor to share among the members, or null
+	 */
+	public void setDecodeExecutor(Executor executor) {
+		for (SimpleXMPPConnection m : members)
+			m.setDecodeExecutor(executor);
+	}
+
+	/**
+	 * Add a listener and filter to every member, so the listener sees the pool's combined inbound traffic.
+	 * Presence packets are passed on from one member only, since each of them gets a copy
+	 * @throws SimpleXMPPException if a member's connection is not open
+	 */
+	public void addPacketListenerAndFilter(PacketListener packetListener,final PacketFilter packetFilter)
+	throws SimpleXMPPException {
+		for (int i = 0; i < members.length; i++) {
+			final int member = i;
+			members[i].addPacketListenerAndFilter(packetListener, new PacketFilter() {
+				public boolean accept(Packet packet) {
+					if ((packet instanceof Presence) && (member != presenceMember()))
+						return false;
+					return (packetFilter == null) || packetFilter.accept(packet);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the index of the member whose presence packets are passed on: the first that isn't reconnecting
+	 */
+	private int presenceMember() {
+		for (int i = 0; i < members.length; i++) {
+			if (! members[i].isReconnecting())
+				return i;
+		}
+		return 0;
+	}
+
+	/**
+	 * Remove a listener from every member
+	 * @throws SimpleXMPPException if a member's connection is not open
+	 */
+	public void removePacketListenerAndFilter(PacketListener packetListener)
+	throws SimpleXMPPException {
+		for (SimpleXMPPConnection m : members)
+			m.removePacketListenerAndFilter(packetListener);
+	}
+
+
+	/**
+	 * Send a message on the least busy member. See SimpleXMPPConnection.sendMessage()
+	 */
+	public void sendMessage(String to,String message,boolean onlyIfOnline)
+	throws SimpleXMPPException {
+		int i = leastBusy();
+		sendsInProgress[i].incrementAndGet();
+		try {
+			members[i].sendMessage(to,message,onlyIfOnline);
+		}
+		finally {
+			sendsInProgress[i].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Send an IQ on the least busy member. See SimpleXMPPConnection.sendIQ()
+	 */
+	public void sendIQ(String to,IQ iq,boolean onlyIfOnline)
+	throws SimpleXMPPException {
+		int i = leastBusy();
+		sendsInProgress[i].incrementAndGet();
+		try {
+			members[i].sendIQ(to,iq,onlyIfOnline);
+		}
+		finally {
+			sendsInProgress[i].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Send an IQ on the least busy member without blocking. See SimpleXMPPConnection.sendIQAsync()
+	 */
+	public CompletableFuture <IQ> sendIQAsync(String to, IQ iq, boolean onlyIfOnline, long timeout) {
+		int i = leastBusy();
+		sendsInProgress[i].incrementAndGet();
+		try {
+			return members[i].sendIQAsync(to,iq,onlyIfOnline,timeout);
+		}
+		finally {
+			sendsInProgress[i].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Send an IQ on the least busy member and wait for the reply. See SimpleXMPPConnection.sendIQgetIQ()
+	 */
+	public IQ sendIQgetIQ(String to, IQ iq, boolean onlyIfOnline, long timeout)
+	throws SimpleXMPPException, TimeoutException {
+		int i = leastBusy();
+		sendsInProgress[i].incrementAndGet();
+		try {
+			return members[i].sendIQgetIQ(to,iq,onlyIfOnline,timeout);
+		}
+		finally {
+			sendsInProgress[i].decrementAndGet();
+		}
+	}
+
+
+	/**
+	 * @return the index of the member with the fewest outstanding requests
+	 */
+	private int leastBusy() {
+		int start = (nextStart.getAndIncrement() & Integer.MAX_VALUE) % members.length;
+		int best = start;
+		int bestLoad = Integer.MAX_VALUE;
+		for (int n = 0; n < members.length; n++) {
+			int i = (start + n) % members.length;
+			// a member that is reconnecting is only chosen if they all are (its sends would just be queued)
+			int load = members[i].isReconnecting() ? (Integer.MAX_VALUE - 1) : getOutstandingCount(i);
+			if (load < bestLoad) {
+				best = i;
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param i member index
+	 * @return the number of requests outstanding on member i
+	 */
+	public int getOutstandingCount(int i) {
+		return sendsInProgress[i].get() + members[i].getPendingReplyCount() + members[i].getQueuedPacketCount();
+	}
+
+	/**
+	 * @param i member index
+	 * @return member i, for anything not covered by the pool's methods
+	 */
+	public SimpleXMPPConnection getConnection(int i) {
+		return members[i];
+	}
+
+	/**
+	 * @return the number of connections in the pool
+	 */
+	public int size() {
+		return members.length;
+	}
+
+}
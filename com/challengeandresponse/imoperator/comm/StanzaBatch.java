@@ -0,0 +1,41 @@
+package com.challengeandresponse.imoperator.comm;
+
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Several stanzas presented to Smack as one packet. Smack's writer thread writes
+ * whatever toXML() returns and then flushes, so a batch goes to the socket
+ * (and through TLS) as one write instead of one write per stanza.
+ * <p>Only used by OutboundPipeline. Smack's packet interceptors and packet-sent listeners
+ * see the batch, not the stanzas inside it.</p>
+ *
+ * @author jim
+ *
+ */
+class StanzaBatch
+extends Packet {
+
+	private final List <Packet> packets;
+
+	StanzaBatch(List <Packet> packets) {
+		this.packets = packets;
+	}
+
+	int size() {
+		return packets.size();
+	}
+
+	List <Packet> getPackets() {
+		return packets;
+	}
+
+	public String toXML() {
+		StringBuilder sb = new StringBuilder();
+		for (Packet p : packets)
+			sb.append(p.toXML());
+		return sb.toString();
+	}
+
+}
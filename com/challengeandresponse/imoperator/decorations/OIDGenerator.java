@@ -0,0 +1,126 @@
+package com.challengeandresponse.imoperator.decorations;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free source of unique object IDs, shared by the RPC decoration and UniversalIQRPC.
+ * <p>An OID value has the form "node-serial":<br />
+ * - node is a random 64-bit per-JVM identifier (or one set with setNodeID()), so that two JVMs
+ * generating OIDs in the same millisecond still can't collide<br />
+ * - serial is a long that packs the current time in msec into its high bits and a
+ * sequence number into its low SEQUENCE_BITS bits<br />
+ * The serial is advanced by compare-and-set, never by sleeping. It is strictly increasing
+ * within a JVM: if the clock hasn't moved (or has moved backwards), the sequence
+ * is incremented, and when the sequence overflows it simply carries into the time bits...
+ * borrowing from the next millisecond rather than waiting for it.</p>
+ * <p>With 20 sequence bits, one millisecond holds 1048576 OIDs, so sustained rates of
+ * a few million per second stay close to the wall clock.</p>
+ * <p>A random node ID makes uniqueness across JVMs very likely, not certain: over a fleet restarted many times,
+ * two JVMs could still draw the same one. Where OIDs from many nodes meet, give each node its own ID with
+ * setNodeID() at startup, before the first OID is generated.</p>
+ *
+ * @author jim
+ *
+ */
+public final class OIDGenerator {
+
+	/**
+	 * Number of low bits of the serial that hold the per-millisecond sequence
+	 */
+	public static final int SEQUENCE_BITS = 20;
+
+	private static final AtomicLong lastSerial = new AtomicLong(0L);
+	private static volatile String nodeID = Long.toHexString(new SecureRandom().nextLong());
+
+	private OIDGenerator() {
+	}
+
+
+	/**
+	 * @return the next serial value. Strictly greater than every value previously returned in this JVM.
+	 */
+	public static long nextSerial() {
+		long timeBased = System.currentTimeMillis() << SEQUENCE_BITS;
+		while (true) {
+			long last = lastSerial.get();
+			long next = (timeBased > last) ? timeBased : (last + 1);
+			if (lastSerial.compareAndSet(last, next))
+				return next;
+		}
+	}
+
+	/**
+	 * @param prefix the prefix to prepend, followed by ":". If this is null or empty, no prefix (and no ":") is added
+	 * @return a new OID of the form [prefix:]node-serial
+	 */
+	public static String nextOID(String prefix) {
+		String value = nodeID+"-"+nextSerial();
+		return ((prefix != null) && (prefix.length() > 0)) ? (prefix+":"+value) : value;
+	}
+
+	/**
+	 * Override the random node ID, e.g. with something stable like a hostname or agent JID.
+	 * Every JVM generating OIDs that may meet one another must have a different node ID.
+	 * @param id the new node ID. If this is null or empty, the call is ignored
+	 */
+	public static void setNodeID(String id) {
+		if ((id != null) && (id.length() > 0))
+			nodeID = id;
+	}
+
+	public static String getNodeID() {
+		return nodeID;
+	}
+
+
+
+	// for testing - a contention benchmark: n threads each pull OIDs as fast as possible
+	public static void main(String[] args)
+	throws InterruptedException {
+		final int threads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		final int perThread = (args.length > 1) ? Integer.parseInt(args[1]) : 2000000;
+		final int checkedPerThread = 100000; // this many from each thread also go through the duplicate check
+		final ConcurrentHashMap <String,Boolean> seen = new ConcurrentHashMap <String,Boolean> ();
+		final AtomicLong failures = new AtomicLong(0);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		System.out.println("OIDGenerator benchmark: "+threads+" threads x "+perThread+" OIDs");
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						long previous = 0;
+						for (int i = 0; i < perThread; i++) {
+							long serial = nextSerial();
+							if (serial <= previous) // per-thread monotonicity
+								failures.incrementAndGet();
+							previous = serial;
+						}
+						for (int i = 0; i < checkedPerThread; i++) {
+							if (seen.putIfAbsent(nextOID("bench"), Boolean.TRUE) != null)
+								failures.incrementAndGet();
+						}
+					}
+					catch (InterruptedException ie) { }
+					done.countDown();
+				}
+			}).start();
+		}
+		long startTime = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - startTime;
+
+		long total = (long) threads * (perThread + checkedPerThread);
+		System.out.println("Generated "+total+" OIDs in "+(elapsed / 1000000)+" msec");
+		System.out.println("Rate: "+(long) (total / (elapsed / 1.0e9))+" OIDs/sec");
+		System.out.println("Ordering or duplicate failures (should be 0): "+failures.get());
+		System.out.println("Serial is ahead of the clock by "+((lastSerial.get() >>> SEQUENCE_BITS) - System.currentTimeMillis())+" msec");
+	}
+
+}
@@ -141,31 +141,19 @@ public class RPC {
 
 
 
-	// these prevent any repeating of the oid value itself, then the agent JID is tacked on to make a GUID
-	private transient static long newOID;
-	private transient static long lastOID;
-	private transient static String oidPrefix = ""; // universally unique string to prepend to the generated, system time-based OID
+	private transient static volatile String oidPrefix = ""; // universally unique string to prepend to the generated OID
 	/**
 	 * Set the OID to a unique value.
 	 * <p>If the oidPrefix has been set using the 
 	 * static setOIDPrefix() method, then "prefix:value" will be the form of the OID,
 	 * otherwise, just the value will be placed in the OID field (no leading ":").</p>
-	 * <p>Value is a long, and it is merely set to the current system time when the OID is generated.
-	 * The generator is a synchronized method (1 call at a time) and sleeps 1 msec if necessary, 
-	 * during execution, to guarantee that the serial value is unique for each call.</p>
+	 * <p>Value comes from the shared OIDGenerator: a per-JVM node ID plus a serial built from
+	 * the current system time and a sequence number. Generation is lock-free and never sleeps, 
+	 * and values are unique across all instances and threads.</p>
 	 *
 	 */
-	private synchronized void setOID() {
-		newOID = System.currentTimeMillis();
-		while (newOID == lastOID) {
-			try {
-				Thread.sleep(1); // 1msec should guarantee unique values, but just to be safe...
-				newOID = System.currentTimeMillis();
-			}
-			catch (InterruptedException ie) { }
-		}
-		lastOID = newOID;
-		this.oid = (oidPrefix.length() > 0) ? (oidPrefix+":"+newOID) : ("" + newOID);
+	private void setOID() {
+		this.oid = OIDGenerator.nextOID(oidPrefix);
 	}
 
 	
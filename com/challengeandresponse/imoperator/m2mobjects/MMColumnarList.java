@@ -0,0 +1,501 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * A list of objects all of one class (rows) sent a column at a time: each field is named once and
+ * its values for every row follow as one value. An MMList repeats every field's tag in every row,
+ * which for a large result set is most of the bytes, and most of the parsing.
+ * <p>Columns of ints (and shorts, bytes, chars and booleans, as 0 or 1), longs and doubles (and floats)
+ * are packed as base64, like MMDoubleArray. Columns of Strings, enums and primitive wrappers are sent as
+ * text, one value per row separated by '|', with "\|" and "\\" for a '|' or '\' in a value and "\0"
+ * for null. Any other field type is refused: send such rows in an MMList.</p>
+ * <p>The rows are encoded when this IQ is written. A receiver can read the columns straight away with
+ * getIntColumn() etc., without making a single row object, or call getList(), which rebuilds the rows the
+ * first time it is called. Rows are made without running a constructor, the way XStream makes them, and
+ * their transient and static fields are neither sent nor set.</p>
+ * <p>The row class is loaded with XStream's ClassLoader, without being initialized, and refused unless all of its
+ * fields can be columns, so a received list can't make rows of an arbitrary class. A column that doesn't hold
+ * one value per row is refused with an IllegalStateException.</p>
+ *
+ * @author jim
+ *
+ */
+public class MMColumnarList <T>
+extends UniversalIQ {
+
+	private static final char INT = 'i';
+	private static final char LONG = 'l';
+	private static final char DOUBLE = 'd';
+	private static final char TEXT = 't';
+
+	private static final char SEPARATOR = '|';
+	private static final char ESCAPE = '\\';
+
+	// the fields of each row class that become columns, made accessible once
+	private static final ClassValue <Field[]> columnFields = new ClassValue <Field[]> () {
+		protected Field[] computeValue(Class <?> type) {
+			ArrayList <Field> result = new ArrayList <Field> ();
+			for (Class <?> c = type; (c != null) && (c != Object.class); c = c.getSuperclass()) {
+				for (Field f : c.getDeclaredFields()) {
+					int modifiers = f.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || f.isSynthetic())
+						continue;
+					kindOf(f); // refuse unsupported types up front
+					f.setAccessible(true);
+					result.add(f);
+				}
+			}
+			return result.toArray(new Field[result.size()]);
+		}
+	};
+
+	private String elementClass;
+	private int rows;
+	private String[] names;
+	private String kinds; // one of INT, LONG, DOUBLE, TEXT per column
+	private String[] columns;
+
+	private transient volatile List <T> list;
+	private transient Object[] decoded; // per column, when first asked for: int[], long[], double[] or String[]
+
+
+	/**
+	 * Instantiate a new MMColumnarList, leaving the list unset
+	 */
+	public MMColumnarList() {
+		super();
+	}
+
+	/**
+	 * Instantiate a new MMColumnarList, setting its list
+	 * @param elementClass the class of every row
+	 * @param l the rows
+	 * @throws IllegalArgumentException if elementClass has a field of a type that can't be a column
+	 */
+	public MMColumnarList(Class <T> elementClass, List <T> l) {
+		super();
+		setList(elementClass, l);
+	}
+
+
+	/**
+	 * @return the rows. If they were received, they are rebuilt from the columns on the first call
+	 * @throws IllegalStateException if the row class isn't available here or can't be made from columns, or a column is malformed
+	 */
+	public synchronized List <T> getList() {
+		materialize();
+		if ((list == null) && (columns != null))
+			list = rebuild();
+		return list;
+	}
+
+	/**
+	 * @param elementClass the class of every row. Rows of a subclass would lose the subclass's fields, so they are refused when the list is written
+	 * @param l the rows
+	 * @throws IllegalArgumentException if elementClass has a field of a type that can't be a column
+	 */
+	public synchronized void setList(Class <T> elementClass, List <T> l) {
+		materialize();
+		columnFields.get(elementClass);
+		this.elementClass = elementClass.getName();
+		this.list = l;
+		this.columns = null;
+		this.decoded = null;
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public synchronized int size() {
+		materialize();
+		return (list != null) ? list.size() : rows;
+	}
+
+	/**
+	 * @return the names of the columns, which are the names of the row class's fields
+	 */
+	public synchronized String[] getColumnNames() {
+		encodeIfNeeded();
+		return (names != null) ? names.clone() : new String[0];
+	}
+
+	/**
+	 * @return the column for an int, short, byte, char (as its code) or boolean (as 0 or 1) field. Not a copy: don't change it
+	 * @throws IllegalArgumentException if there is no such column, or it holds another type
+	 * @throws IllegalStateException if the column received is malformed or doesn't hold one value per row
+	 */
+	public int[] getIntColumn(String name) {
+		return (int[]) column(name, INT);
+	}
+
+	/**
+	 * @return the column for a long field. Not a copy: don't change it
+	 * @throws IllegalArgumentException if there is no such column, or it holds another type
+	 * @throws IllegalStateException if the column received is malformed or doesn't hold one value per row
+	 */
+	public long[] getLongColumn(String name) {
+		return (long[]) column(name, LONG);
+	}
+
+	/**
+	 * @return the column for a double or float field. Not a copy: don't change it
+	 * @throws IllegalArgumentException if there is no such column, or it holds another type
+	 * @throws IllegalStateException if the column received is malformed or doesn't hold one value per row
+	 */
+	public double[] getDoubleColumn(String name) {
+		return (double[]) column(name, DOUBLE);
+	}
+
+	/**
+	 * @return the column for a String, enum (as its name) or primitive wrapper (as its toString()) field, with nulls. Not a copy: don't change it
+	 * @throws IllegalArgumentException if there is no such column, or it holds another type
+	 * @throws IllegalStateException if the column received is malformed or doesn't hold one value per row
+	 */
+	public String[] getTextColumn(String name) {
+		return (String[]) column(name, TEXT);
+	}
+
+
+	/**
+	 * Encode the rows into columns, then write as usual
+	 */
+	public void writeChildElementXML(Writer out)
+	throws IOException {
+		synchronized (this) {
+			if (list != null)
+				encode();
+		}
+		super.writeChildElementXML(out);
+	}
+
+
+	private synchronized Object column(String name, char kind) {
+		encodeIfNeeded();
+		int i = indexOf(name);
+		if (i < 0)
+			throw new IllegalArgumentException("No column "+name);
+		if (kinds.charAt(i) != kind)
+			throw new IllegalArgumentException("Column "+name+" is not of type "+kind+" but "+kinds.charAt(i));
+		return decoded(i);
+	}
+
+	/**
+	 * @return the index of the named column, or -1
+	 * @throws IllegalStateException if the received names, kinds and columns don't match up
+	 */
+	private int indexOf(String name) {
+		if (names == null)
+			return -1;
+		if ((kinds == null) || (kinds.length() != names.length) || (columns == null) || (columns.length != names.length))
+			throw new IllegalStateException("MMColumnarList has "+names.length+" column names but "+((kinds == null) ? 0 : kinds.length())
+					+" kinds and "+((columns == null) ? 0 : columns.length)+" columns");
+		for (int i = 0; i < names.length; i++) {
+			if (name.equals(names[i]))
+				return i;
+		}
+		return -1;
+	}
+
+	private Object decoded(int i) {
+		if (decoded == null)
+			decoded = new Object[names.length];
+		if (decoded[i] == null)
+			decoded[i] = decodeColumn(names[i], kinds.charAt(i), columns[i]);
+		return decoded[i];
+	}
+
+	/**
+	 * Make the columns from the list if they haven't been made or received
+	 */
+	private void encodeIfNeeded() {
+		materialize();
+		if ((columns == null) && (list != null))
+			encode();
+	}
+
+	private void encode() {
+		Class <?> type = loadElementClass();
+		Field[] fields = columnFields.get(type);
+		List <T> l = list;
+		int count = l.size();
+		for (T row : l) {
+			if ((row == null) || (row.getClass() != type))
+				throw new IllegalArgumentException("Every row must be a "+type.getName()+", not "+((row == null) ? "null" : row.getClass().getName()));
+		}
+		String[] newNames = new String[fields.length];
+		StringBuilder newKinds = new StringBuilder(fields.length);
+		String[] newColumns = new String[fields.length];
+		try {
+			for (int c = 0; c < fields.length; c++) {
+				Field f = fields[c];
+				char kind = kindOf(f);
+				newNames[c] = f.getName();
+				newKinds.append(kind);
+				switch (kind) {
+				case INT:
+					int[] ints = new int[count];
+					for (int r = 0; r < count; r++)
+						ints[r] = (f.getType() == boolean.class) ? (f.getBoolean(l.get(r)) ? 1 : 0) : f.getInt(l.get(r));
+					newColumns[c] = PackedArrays.pack(ints);
+					break;
+				case LONG:
+					long[] longs = new long[count];
+					for (int r = 0; r < count; r++)
+						longs[r] = f.getLong(l.get(r));
+					newColumns[c] = PackedArrays.pack(longs);
+					break;
+				case DOUBLE:
+					double[] doubles = new double[count];
+					for (int r = 0; r < count; r++)
+						doubles[r] = f.getDouble(l.get(r));
+					newColumns[c] = PackedArrays.pack(doubles);
+					break;
+				default:
+					StringBuilder sb = new StringBuilder(count * 8);
+					for (int r = 0; r < count; r++) {
+						if (r > 0)
+							sb.append(SEPARATOR);
+						Object value = f.get(l.get(r));
+						if (value == null)
+							sb.append(ESCAPE).append('0');
+						else
+							appendEscaped(sb, (value instanceof Enum) ? ((Enum <?>) value).name() : value.toString());
+					}
+					newColumns[c] = sb.toString();
+				}
+			}
+		}
+		catch (IllegalAccessException iae) { // the fields were made accessible
+			throw new IllegalStateException(iae);
+		}
+		this.rows = count;
+		this.names = newNames;
+		this.kinds = newKinds.toString();
+		this.columns = newColumns;
+		this.decoded = null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List <T> rebuild() {
+		Class <?> type = loadElementClass();
+		Field[] fields = columnFields.get(type);
+		if (rows < 0)
+			throw new IllegalStateException("MMColumnarList has "+rows+" rows");
+		// decode and check every column before making any row
+		Object[] fieldValues = new Object[fields.length];
+		for (int c = 0; c < fields.length; c++) {
+			int i = indexOf(fields[c].getName());
+			// not sent, or sent as another type, e.g. the sender's class is older: leave the field unset
+			if ((i >= 0) && (kinds.charAt(i) == kindOf(fields[c])))
+				fieldValues[c] = decoded(i);
+		}
+		ArrayList <T> result = new ArrayList <T> (rows);
+		for (int r = 0; r < rows; r++)
+			result.add((T) UniversalIQ.getXStreamInstance().getReflectionProvider().newInstance(type));
+		try {
+			for (int c = 0; c < fields.length; c++) {
+				Field f = fields[c];
+				Object values = fieldValues[c];
+				if (values == null)
+					continue;
+				Class <?> ft = f.getType();
+				for (int r = 0; r < rows; r++) {
+					Object row = result.get(r);
+					if (values instanceof int[]) {
+						int v = ((int[]) values)[r];
+						if (ft == int.class)
+							f.setInt(row, v);
+						else if (ft == boolean.class)
+							f.setBoolean(row, v != 0);
+						else if (ft == short.class)
+							f.setShort(row, (short) v);
+						else if (ft == byte.class)
+							f.setByte(row, (byte) v);
+						else
+							f.setChar(row, (char) v);
+					}
+					else if (values instanceof long[])
+						f.setLong(row, ((long[]) values)[r]);
+					else if (values instanceof double[]) {
+						if (ft == float.class)
+							f.setFloat(row, (float) ((double[]) values)[r]);
+						else
+							f.setDouble(row, ((double[]) values)[r]);
+					}
+					else
+						f.set(row, fromText(ft, ((String[]) values)[r]));
+				}
+			}
+		}
+		catch (IllegalAccessException iae) { // the fields were made accessible
+			throw new IllegalStateException(iae);
+		}
+		return result;
+	}
+
+	/**
+	 * Load the row class the way XStream would, without initializing it, and check all its fields can be columns
+	 * @throws IllegalStateException if it isn't available here, or has a field that can't be a column
+	 */
+	private Class <?> loadElementClass() {
+		if (elementClass == null)
+			throw new IllegalStateException("MMColumnarList has no row class");
+		ClassLoader loader = UniversalIQ.getXStreamInstance().getClassLoader();
+		if (loader == null)
+			loader = MMColumnarList.class.getClassLoader();
+		Class <?> type;
+		try {
+			type = Class.forName(elementClass, false, loader);
+		}
+		catch (ClassNotFoundException cnfe) {
+			throw new IllegalStateException("Row class "+elementClass+" is not available", cnfe);
+		}
+		if (type.isInterface() || type.isArray() || type.isPrimitive() || Modifier.isAbstract(type.getModifiers()))
+			throw new IllegalStateException("Row class "+elementClass+" can't be instantiated");
+		try {
+			columnFields.get(type);
+		}
+		catch (RuntimeException re) { // a field that can't be a column, or (for a JDK class) can't be made accessible
+			throw new IllegalStateException("Row class "+elementClass+" can't be made from columns: "+re.getMessage(), re);
+		}
+		return type;
+	}
+
+
+	/**
+	 * @throws IllegalArgumentException if f's type can't be a column
+	 */
+	private static char kindOf(Field f) {
+		Class <?> t = f.getType();
+		if ((t == int.class) || (t == short.class) || (t == byte.class) || (t == char.class) || (t == boolean.class))
+			return INT;
+		if (t == long.class)
+			return LONG;
+		if ((t == double.class) || (t == float.class))
+			return DOUBLE;
+		if ((t == String.class) || t.isEnum() || (t == Integer.class) || (t == Long.class) || (t == Double.class) || (t == Float.class)
+				|| (t == Short.class) || (t == Byte.class) || (t == Character.class) || (t == Boolean.class))
+			return TEXT;
+		throw new IllegalArgumentException("Field "+f+" can't be a column: use an MMList for this type");
+	}
+
+	/**
+	 * @throws IllegalStateException if the column is missing, malformed, or doesn't hold one value per row
+	 */
+	private Object decodeColumn(String name, char kind, String column) {
+		if (column == null)
+			throw new IllegalStateException("Column "+name+" is missing");
+		Object values;
+		int length;
+		try {
+			switch (kind) {
+			case INT: values = PackedArrays.unpackInts(column); length = ((int[]) values).length; break;
+			case LONG: values = PackedArrays.unpackLongs(column); length = ((long[]) values).length; break;
+			case DOUBLE: values = PackedArrays.unpackDoubles(column); length = ((double[]) values).length; break;
+			case TEXT: values = splitText(column); length = ((String[]) values).length; break;
+			default: throw new IllegalStateException("Column "+name+" has unknown type "+kind);
+			}
+		}
+		catch (IllegalArgumentException iae) { // not base64, or not a whole number of values
+			throw new IllegalStateException("Column "+name+" is malformed: "+iae.getMessage(), iae);
+		}
+		if (length != rows)
+			throw new IllegalStateException("Column "+name+" has "+length+" values for "+rows+" rows");
+		return values;
+	}
+
+	private static void appendEscaped(StringBuilder sb, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == SEPARATOR) || (c == ESCAPE))
+				sb.append(ESCAPE);
+			sb.append(c);
+		}
+	}
+
+	/**
+	 * @return the column's values. As many as it holds, so decodeColumn() can check them against rows
+	 */
+	private String[] splitText(String column) {
+		if (column.isEmpty() && (rows == 0)) // no rows, rather than one empty value
+			return new String[0];
+		ArrayList <String> values = new ArrayList <String> (Math.max(rows, 0));
+		StringBuilder sb = new StringBuilder();
+		boolean isNull = false;
+		for (int i = 0; i <= column.length(); i++) {
+			if ((i == column.length()) || (column.charAt(i) == SEPARATOR)) {
+				values.add(isNull ? null : sb.toString());
+				sb.setLength(0);
+				isNull = false;
+			}
+			else if ((column.charAt(i) == ESCAPE) && (i + 1 < column.length())) {
+				char next = column.charAt(++i);
+				if (next == '0')
+					isNull = true;
+				else
+					sb.append(next);
+			}
+			else
+				sb.append(column.charAt(i));
+		}
+		return values.toArray(new String[values.size()]);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object fromText(Class <?> type, String s) {
+		if ((s == null) || (type == String.class))
+			return s;
+		if (type.isEnum())
+			return Enum.valueOf((Class <? extends Enum>) type, s);
+		if (type == Integer.class)
+			return Integer.valueOf(s);
+		if (type == Long.class)
+			return Long.valueOf(s);
+		if (type == Double.class)
+			return Double.valueOf(s);
+		if (type == Float.class)
+			return Float.valueOf(s);
+		if (type == Short.class)
+			return Short.valueOf(s);
+		if (type == Byte.class)
+			return Byte.valueOf(s);
+		if (type == Character.class)
+			return (s.length() > 0) ? Character.valueOf(s.charAt(0)) : null;
+		return Boolean.valueOf(s);
+	}
+
+
+	// for testing
+	public static class Row {
+		String name;
+		int count;
+		double value;
+		Boolean ok;
+		public Row(String name, int count, double value, Boolean ok) {
+			this.name = name;
+			this.count = count;
+			this.value = value;
+			this.ok = ok;
+		}
+	}
+
+	// for testing
+	public static void main(String[] args) {
+		ArrayList <Row> rows = new ArrayList <Row> ();
+		for (int i = 0; i < 1000; i++)
+			rows.add(new Row("row|"+i, i, i * 1.5, (i % 3 == 0) ? null : Boolean.valueOf(i % 2 == 0)));
+		String columnarXML = new MMColumnarList <Row> (Row.class, rows).getChildElementXML();
+		String listXML = new MMList <Row> (rows).getChildElementXML();
+		System.out.println("MMColumnarList: "+columnarXML.length()+" chars");
+		System.out.println("MMList: "+listXML.length()+" chars");
+	}
+
+}
@@ -0,0 +1,59 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import org.jivesoftware.smack.packet.IQ;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * Asks the sender of a reference for the payload behind it (a GET), and brings it back (the RESULT),
+ * when the payload is no longer in the receiver's cache (see DedupPayloadCodec and DedupChannel)
+ *
+ * @author jim
+ *
+ */
+public class MMDedupFetch
+extends UniversalIQ {
+
+	private String hash;
+	private String body;
+
+	private MMDedupFetch(String hash, String body) {
+		super();
+		this.hash = hash;
+		this.body = body;
+	}
+
+	/**
+	 * @return a request for the payload with this hash
+	 */
+	public static MMDedupFetch request(String hash) {
+		MMDedupFetch fetch = new MMDedupFetch(hash, null);
+		fetch.setType(IQ.Type.GET);
+		return fetch;
+	}
+
+	/**
+	 * @return the reply to a request, carrying the payload
+	 * @param packetID the packet ID of the request
+	 */
+	public static MMDedupFetch response(String hash, String body, String packetID) {
+		MMDedupFetch fetch = new MMDedupFetch(hash, body);
+		fetch.setType(IQ.Type.RESULT);
+		fetch.setPacketID(packetID);
+		return fetch;
+	}
+
+	public String getHash() {
+		materialize();
+		return this.hash;
+	}
+
+	/**
+	 * @return the payload's XML, or null in a request
+	 */
+	public String getBody() {
+		materialize();
+		return this.body;
+	}
+
+}
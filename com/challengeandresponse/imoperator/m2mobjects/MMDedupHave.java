@@ -0,0 +1,31 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * Tells the sender of a payload that it was received in full and cached under its hash, so the
+ * sender can refer to it by hash from now on (see DedupPayloadCodec and DedupChannel)
+ *
+ * @author jim
+ *
+ */
+public class MMDedupHave
+extends UniversalIQ {
+
+	private String hash;
+
+	/**
+	 * Instantiate a new MMDedupHave
+	 * @param hash the hash of the cached payload
+	 */
+	public MMDedupHave(String hash) {
+		super();
+		this.hash = hash;
+	}
+
+	public String getHash() {
+		materialize();
+		return this.hash;
+	}
+
+}
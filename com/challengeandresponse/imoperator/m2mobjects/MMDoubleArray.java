@@ -0,0 +1,89 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * An array of doubles, e.g. a series of telemetry readings, sent packed: the whole array is one base64
+ * value, 8 bytes per double, instead of the element per value, and a boxed Double per value,
+ * of an MMList&lt;Double&gt;.
+ * <p>The array is packed when this IQ is written, so changes made to it after setValues() are sent.
+ * A received array is unpacked on the first call to getValues().</p>
+ *
+ * @author jim
+ *
+ */
+public class MMDoubleArray
+extends UniversalIQ {
+
+	private String packed;
+	private transient volatile double[] values;
+
+	/**
+	 * Instantiate a new MMDoubleArray, leaving the array unset
+	 */
+	public MMDoubleArray() {
+		super();
+	}
+
+	/**
+	 * Instantiate a new MMDoubleArray holding values (not a copy of it)
+	 */
+	public MMDoubleArray(double[] values) {
+		super();
+		this.values = values;
+	}
+
+	/**
+	 * @return the array (not a copy of it), or null if it is unset. If this MMDoubleArray was decoded lazily, this is when it is unmarshalled
+	 */
+	public double[] getValues() {
+		materialize();
+		if ((values == null) && (packed != null))
+			values = PackedArrays.unpackDoubles(packed);
+		return values;
+	}
+
+	public void setValues(double[] values) {
+		materialize();
+		this.values = values;
+		this.packed = null;
+	}
+
+	/**
+	 * @return the number of values, or 0 if the array is unset
+	 */
+	public int size() {
+		double[] v = getValues();
+		return (v != null) ? v.length : 0;
+	}
+
+	/**
+	 * Pack the array, then write as usual
+	 */
+	public void writeChildElementXML(Writer out)
+	throws IOException {
+		double[] v = values;
+		if (v != null)
+			packed = PackedArrays.pack(v);
+		super.writeChildElementXML(out);
+	}
+
+
+	// for testing
+	public static void main(String[] args) {
+		double[] readings = new double[100];
+		java.util.ArrayList <Double> boxed = new java.util.ArrayList <Double> ();
+		for (int i = 0; i < readings.length; i++) {
+			readings[i] = 20.0 + Math.sin(i / 10.0);
+			boxed.add(Double.valueOf(readings[i]));
+		}
+		String packedXML = new MMDoubleArray(readings).getChildElementXML();
+		String listXML = new MMList <Double> (boxed).getChildElementXML();
+		System.out.println("MMDoubleArray: "+packedXML.length()+" chars\n"+packedXML);
+		System.out.println("MMList<Double>: "+listXML.length()+" chars");
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import com.challengeandresponse.imoperator.universaliq.Marshalled;
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * A single int, without the boxing of an MMObject&lt;Integer&gt;. With the converter generated
+ * for it (see Marshalled) it is also written and read without reflection.
+ *
+ * @author jim
+ *
+ */
+@Marshalled
+public class MMInt
+extends UniversalIQ {
+
+	private int value;
+
+	/**
+	 * Instantiate a new MMInt holding 0
+	 */
+	public MMInt() {
+		super();
+	}
+
+	/**
+	 * Instantiate a new MMInt holding value
+	 */
+	public MMInt(int value) {
+		super();
+		this.value = value;
+	}
+
+	/**
+	 * @return the value. If this MMInt was decoded lazily, this is when it is unmarshalled
+	 */
+	public int getValue() {
+		materialize();
+		return this.value;
+	}
+
+	public void setValue(int value) {
+		materialize();
+		this.value = value;
+	}
+
+}
@@ -0,0 +1,74 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * An array of ints, e.g. a series of samples or counts, sent packed: the whole array is one base64
+ * value, 4 bytes per int, instead of the element per value, and a boxed Integer per value,
+ * of an MMList&lt;Integer&gt;.
+ * <p>The array is packed when this IQ is written, so changes made to it after setValues() are sent.
+ * A received array is unpacked on the first call to getValues().</p>
+ *
+ * @author jim
+ *
+ */
+public class MMIntArray
+extends UniversalIQ {
+
+	private String packed;
+	private transient volatile int[] values;
+
+	/**
+	 * Instantiate a new MMIntArray, leaving the array unset
+	 */
+	public MMIntArray() {
+		super();
+	}
+
+	/**
+	 * Instantiate a new MMIntArray holding values (not a copy of it)
+	 */
+	public MMIntArray(int[] values) {
+		super();
+		this.values = values;
+	}
+
+	/**
+	 * @return the array (not a copy of it), or null if it is unset. If this MMIntArray was decoded lazily, this is when it is unmarshalled
+	 */
+	public int[] getValues() {
+		materialize();
+		if ((values == null) && (packed != null))
+			values = PackedArrays.unpackInts(packed);
+		return values;
+	}
+
+	public void setValues(int[] values) {
+		materialize();
+		this.values = values;
+		this.packed = null;
+	}
+
+	/**
+	 * @return the number of values, or 0 if the array is unset
+	 */
+	public int size() {
+		int[] v = getValues();
+		return (v != null) ? v.length : 0;
+	}
+
+	/**
+	 * Pack the array, then write as usual
+	 */
+	public void writeChildElementXML(Writer out)
+	throws IOException {
+		int[] v = values;
+		if (v != null)
+			packed = PackedArrays.pack(v);
+		super.writeChildElementXML(out);
+	}
+
+}
@@ -34,11 +34,16 @@ extends UniversalIQ {
 	}
 
 	
+	/**
+	 * @return the list. If this MMList was decoded lazily, this is when it is unmarshalled
+	 */
 	public List <T> getList() {
+		materialize();
 		return this.list;
 	}
 	
 	public void setList(List <T> l) {
+		materialize();
 		this.list = l;
 	}
 	
@@ -0,0 +1,78 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import java.util.List;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * One piece of a list sent in chunks by ChunkedListSender, to be reassembled by ChunkedListReceiver.
+ * Every chunk of a transfer carries the transfer's ID, and its own sequence number from 0; the
+ * last chunk says so. A chunk marked aborted carries no elements: it tells the receiver the sender
+ * gave up, so that it doesn't wait for the rest.
+ *
+ * @author jim
+ *
+ */
+public class MMListChunk <T>
+extends UniversalIQ {
+
+	private String transferID;
+	private int seq;
+	private boolean last;
+	private boolean aborted;
+	private List <T> items;
+
+	/**
+	 * Instantiate a new MMListChunk
+	 * @param transferID the ID shared by every chunk of the transfer
+	 * @param seq this chunk's sequence number, from 0
+	 * @param last true if this is the final chunk of the transfer
+	 * @param items the elements in this chunk
+	 */
+	public MMListChunk(String transferID, int seq, boolean last, List <T> items) {
+		super();
+		this.transferID = transferID;
+		this.seq = seq;
+		this.last = last;
+		this.items = items;
+	}
+
+	/**
+	 * @return a chunk that ends the transfer without delivering the rest of it
+	 */
+	public static <T> MMListChunk <T> abort(String transferID, int seq) {
+		MMListChunk <T> chunk = new MMListChunk <T> (transferID, seq, true, null);
+		chunk.aborted = true;
+		return chunk;
+	}
+
+
+	public String getTransferID() {
+		materialize();
+		return this.transferID;
+	}
+
+	public int getSeq() {
+		materialize();
+		return this.seq;
+	}
+
+	public boolean isLast() {
+		materialize();
+		return this.last;
+	}
+
+	public boolean isAborted() {
+		materialize();
+		return this.aborted;
+	}
+
+	/**
+	 * @return the elements in this chunk. If this chunk was decoded lazily, this is when it is unmarshalled
+	 */
+	public List <T> getItems() {
+		materialize();
+		return this.items;
+	}
+
+}
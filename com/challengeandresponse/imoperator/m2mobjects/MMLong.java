@@ -0,0 +1,47 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import com.challengeandresponse.imoperator.universaliq.Marshalled;
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * A single long, without the boxing of an MMObject&lt;Long&gt;. With the converter generated
+ * for it (see Marshalled) it is also written and read without reflection.
+ *
+ * @author jim
+ *
+ */
+@Marshalled
+public class MMLong
+extends UniversalIQ {
+
+	private long value;
+
+	/**
+	 * Instantiate a new MMLong holding 0
+	 */
+	public MMLong() {
+		super();
+	}
+
+	/**
+	 * Instantiate a new MMLong holding value
+	 */
+	public MMLong(long value) {
+		super();
+		this.value = value;
+	}
+
+	/**
+	 * @return the value. If this MMLong was decoded lazily, this is when it is unmarshalled
+	 */
+	public long getValue() {
+		materialize();
+		return this.value;
+	}
+
+	public void setValue(long value) {
+		materialize();
+		this.value = value;
+	}
+
+}
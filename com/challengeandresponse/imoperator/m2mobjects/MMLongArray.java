@@ -0,0 +1,74 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * An array of longs, e.g. a series of timestamps or counters, sent packed: the whole array is one base64
+ * value, 8 bytes per long, instead of the element per value, and a boxed Long per value,
+ * of an MMList&lt;Long&gt;.
+ * <p>The array is packed when this IQ is written, so changes made to it after setValues() are sent.
+ * A received array is unpacked on the first call to getValues().</p>
+ *
+ * @author jim
+ *
+ */
+public class MMLongArray
+extends UniversalIQ {
+
+	private String packed;
+	private transient volatile long[] values;
+
+	/**
+	 * Instantiate a new MMLongArray, leaving the array unset
+	 */
+	public MMLongArray() {
+		super();
+	}
+
+	/**
+	 * Instantiate a new MMLongArray holding values (not a copy of it)
+	 */
+	public MMLongArray(long[] values) {
+		super();
+		this.values = values;
+	}
+
+	/**
+	 * @return the array (not a copy of it), or null if it is unset. If this MMLongArray was decoded lazily, this is when it is unmarshalled
+	 */
+	public long[] getValues() {
+		materialize();
+		if ((values == null) && (packed != null))
+			values = PackedArrays.unpackLongs(packed);
+		return values;
+	}
+
+	public void setValues(long[] values) {
+		materialize();
+		this.values = values;
+		this.packed = null;
+	}
+
+	/**
+	 * @return the number of values, or 0 if the array is unset
+	 */
+	public int size() {
+		long[] v = getValues();
+		return (v != null) ? v.length : 0;
+	}
+
+	/**
+	 * Pack the array, then write as usual
+	 */
+	public void writeChildElementXML(Writer out)
+	throws IOException {
+		long[] v = values;
+		if (v != null)
+			packed = PackedArrays.pack(v);
+		super.writeChildElementXML(out);
+	}
+
+}
@@ -33,11 +33,16 @@ extends UniversalIQ {
 		this.o = o;
 	}
 	
+	/**
+	 * @return the wrapped object. If this MMObject was decoded lazily, this is when it is unmarshalled
+	 */
 	public T getObject() {
+		materialize();
 		return this.o;
 	}
 	
 	public void setObject(T o) {
+		materialize();
 		this.o = o;
 	}
 
@@ -0,0 +1,92 @@
+package com.challengeandresponse.imoperator.m2mobjects;
+
+import java.util.Map;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * One version of an object's state, as pushed by DeltaSyncSender: either a snapshot of the whole object, or
+ * just the fields that changed since a base version the receiver is known to have. The object is
+ * identified by an OID chosen by the sender, and each push gives it a new, higher, version number.
+ *
+ * @author jim
+ *
+ */
+public class MMObjectDelta <T>
+extends UniversalIQ {
+
+	/**
+	 * The base version of a snapshot
+	 */
+	public static final long NO_BASE = -1L;
+
+	private String oid;
+	private long version;
+	private long baseVersion;
+	private T object; // the whole state, in a snapshot
+	private Map <String, Object> changes; // field name to new value, in a delta
+
+	private MMObjectDelta(String oid, long version, long baseVersion, T object, Map <String, Object> changes) {
+		super();
+		this.oid = oid;
+		this.version = version;
+		this.baseVersion = baseVersion;
+		this.object = object;
+		this.changes = changes;
+	}
+
+	/**
+	 * @return an IQ carrying the whole of object as version
+	 */
+	public static <T> MMObjectDelta <T> snapshot(String oid, long version, T object) {
+		return new MMObjectDelta <T> (oid, version, NO_BASE, object, null);
+	}
+
+	/**
+	 * @return an IQ carrying the fields of version that differ from baseVersion
+	 */
+	public static <T> MMObjectDelta <T> delta(String oid, long version, long baseVersion, Map <String, Object> changes) {
+		return new MMObjectDelta <T> (oid, version, baseVersion, null, changes);
+	}
+
+
+	public String getOID() {
+		materialize();
+		return this.oid;
+	}
+
+	public long getVersion() {
+		materialize();
+		return this.version;
+	}
+
+	/**
+	 * @return the version the changes apply to, or NO_BASE for a snapshot
+	 */
+	public long getBaseVersion() {
+		materialize();
+		return this.baseVersion;
+	}
+
+	public boolean isSnapshot() {
+		materialize();
+		return (this.baseVersion == NO_BASE);
+	}
+
+	/**
+	 * @return the whole state, or null if this is a delta
+	 */
+	public T getObject() {
+		materialize();
+		return this.object;
+	}
+
+	/**
+	 * @return the changed fields by name, or null if this is a snapshot
+	 */
+	public Map <String, Object> getChanges() {
+		materialize();
+		return this.changes;
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.challengeandresponse.imoperator.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.challengeandresponse.imoperator.universaliq.Marshalled;
+import com.challengeandresponse.imoperator.universaliq.UniversalIQ;
+
+/**
+ * A payload for MarshallerBenchmark, with the usual mix of fields: simple values, through accessors or
+ * directly, a private field with no accessors, and a list. Like any UniversalIQ that may be decoded lazily,
+ * its accessors call materialize() first
+ *
+ * @author jim
+ *
+ */
+@Marshalled
+public class BenchmarkPayload
+extends UniversalIQ {
+
+	private String name;
+	private int count;
+	private double value;
+	boolean flag;
+	private long stamp;
+	private List <String> items;
+
+	public BenchmarkPayload() {
+		super();
+	}
+
+	public BenchmarkPayload(String name, int count, double value, boolean flag, int itemCount) {
+		super();
+		this.name = name;
+		this.count = count;
+		this.value = value;
+		this.flag = flag;
+		this.stamp = System.currentTimeMillis();
+		this.items = new ArrayList <String> ();
+		for (int i = 0; i < itemCount; i++)
+			items.add(name+"-"+i);
+	}
+
+	public String getName() {
+		materialize();
+		return name;
+	}
+
+	public void setName(String name) {
+		materialize();
+		this.name = name;
+	}
+
+	public int getCount() {
+		materialize();
+		return count;
+	}
+
+	public void setCount(int count) {
+		materialize();
+		this.count = count;
+	}
+
+	public double getValue() {
+		materialize();
+		return value;
+	}
+
+	public void setValue(double value) {
+		materialize();
+		this.value = value;
+	}
+
+	public List <String> getItems() {
+		materialize();
+		return items;
+	}
+
+	public void setItems(List <String> items) {
+		materialize();
+		this.items = items;
+	}
+
+	public String toString() {
+		materialize();
+		return "BenchmarkPayload name:"+name+" count:"+count+" value:"+value+" flag:"+flag+" stamp:"+stamp+" items:"+items;
+	}
+
+}
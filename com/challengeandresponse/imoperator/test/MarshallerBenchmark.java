@@ -0,0 +1,73 @@
+package com.challengeandresponse.imoperator.test;
+
+import java.io.StringWriter;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Packet;
+
+import com.challengeandresponse.imoperator.universaliq.UniversalIQRegistry;
+import com.challengeandresponse.universalxstream.UniversalXStream;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+
+/**
+ * Compares marshalling and unmarshalling a BenchmarkPayload through XStream's reflection with the same through
+ * the converter MarshallerProcessor generated for it. Compile with the processor enabled, or the second
+ * half is skipped.
+ * <p>args: [iterations [items per payload]]</p>
+ *
+ * @author jim
+ *
+ */
+public class MarshallerBenchmark {
+
+	public static void main(String[] args) {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+		int itemCount = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+		BenchmarkPayload payload = new BenchmarkPayload("bench", 42, 3.14159, true, itemCount);
+
+		UniversalXStream.excludeClasses(Packet.class, IQ.class);
+		XStream reflective = new UniversalXStream();
+		XStream generated = new UniversalXStream();
+		if (! UniversalIQRegistry.loadGeneratedMarshaller(generated, BenchmarkPayload.class)) {
+			System.out.println("No generated marshaller found for BenchmarkPayload. Compile with MarshallerProcessor on the processor path.");
+			generated = null;
+		}
+
+		String xml = run("reflection", reflective, payload, iterations);
+		if (generated != null) {
+			String generatedXML = run("generated", generated, payload, iterations);
+			System.out.println("Same XML from both: "+xml.equals(generatedXML));
+			System.out.println("Generated XML read back by reflection: "+reflective.fromXML(generatedXML));
+		}
+	}
+
+	private static String run(String label, XStream xs, BenchmarkPayload payload, int iterations) {
+		String xml = toXML(xs, payload);
+		for (int i = 0; i < iterations / 10; i++) { // warm up
+			toXML(xs, payload);
+			xs.fromXML(xml);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			toXML(xs, payload);
+		long marshal = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			xs.fromXML(xml);
+		long unmarshal = System.nanoTime() - start;
+
+		System.out.println(label+": marshal "+(marshal / iterations)+" nsec, unmarshal "+(unmarshal / iterations)+
+				" nsec per payload ("+xml.length()+" chars)");
+		return xml;
+	}
+
+	private static String toXML(XStream xs, Object o) {
+		StringWriter sw = new StringWriter();
+		xs.marshal(o, new CompactWriter(sw));
+		return sw.toString();
+	}
+
+}
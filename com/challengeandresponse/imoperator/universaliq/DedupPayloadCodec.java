@@ -0,0 +1,421 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+
+/**
+ * Sends a large payload that the addressee already holds as a reference to it: the SHA-256 of its XML.
+ * A payload over the threshold goes out in full the first time, as the text of a dedup-body element carrying its hash.
+ * It is escaped rather than embedded as elements, so the receiver gets back, and hashes, exactly the chars that were sent.
+ * The receiver caches it under the hash and confirms it holds it (DedupChannel does that). Sent again to the
+ * same addressee while the confirmation is fresh, the payload goes out as just a dedup-ref element. Smaller
+ * payloads are sent as plain XStream XML.
+ * <p>The receiver resolves a reference from a bounded LRU cache. On a miss, the IQ is handed on unmaterialized,
+ * and its payload is fetched from the sender (through the Fetcher, which DedupChannel provides) when
+ * materialize() is first called. Use SimpleXMPPConnection.setDecodeExecutor() so that happens off the thread that
+ * delivers packets, since that thread must stay free to deliver the fetched body.</p>
+ * <p>Both caches keep the bodies' XML as Strings, and are bounded by entries and by total chars. The sender
+ * keeps what it sent, to answer fetches, and refers only to payloads it still holds. Addressees are
+ * matched by JID as given to send and as seen on the confirmation, so address peers by full JID.</p>
+ * <p>The codec is stateful: register one instance for every namespace it serves, and bind one DedupChannel to it.</p>
+ *
+ * @author jim
+ *
+ */
+public class DedupPayloadCodec
+implements PayloadCodec {
+
+	public static final String NAME = "dedup";
+	public static final int DEFAULT_THRESHOLD = 4096; // chars of XML
+	public static final int DEFAULT_CACHE_ENTRIES = 256;
+	public static final int DEFAULT_CACHE_CHARS = 16 * 1024 * 1024;
+	public static final long DEFAULT_CONFIRMATION_TTL = 10 * 60 * 1000L; // msec
+	public static final int MAX_CONFIRMATIONS = 8192; // (peer, hash) pairs
+
+	static final String REF = "dedup-ref";
+	static final String BODY = "dedup-body";
+	static final String HASH = "hash";
+
+	/**
+	 * Fetches a payload this end received a reference to but doesn't hold
+	 */
+	public interface Fetcher {
+		/**
+		 * @param from the sender of the reference
+		 * @param hash the payload's hash
+		 * @return the payload, as the sender sent it in full
+		 * @throws Exception if it can't be had
+		 */
+		public String fetch(String from, String hash)
+		throws Exception;
+	}
+
+	/**
+	 * Payload XML by hash, least recently used first, bounded by entries and chars
+	 */
+	private static class BodyCache {
+		private final LinkedHashMap <String, String> bodies = new LinkedHashMap <String, String> (16, 0.75F, true);
+		private final int maxEntries;
+		private final long maxChars;
+		private long chars = 0;
+
+		BodyCache(int maxEntries, long maxChars) {
+			this.maxEntries = maxEntries;
+			this.maxChars = maxChars;
+		}
+
+		synchronized String get(String hash) {
+			return bodies.get(hash);
+		}
+
+		synchronized boolean contains(String hash) {
+			return bodies.containsKey(hash);
+		}
+
+		synchronized void put(String hash, String body) {
+			if (body.length() > maxChars)
+				return;
+			String old = bodies.put(hash, body);
+			chars += body.length() - ((old != null) ? old.length() : 0);
+			Iterator <String> it = bodies.values().iterator();
+			while (((bodies.size() > maxEntries) || (chars > maxChars)) && it.hasNext()) {
+				chars -= it.next().length();
+				it.remove();
+			}
+		}
+
+		synchronized int size() {
+			return bodies.size();
+		}
+	}
+
+	private final int threshold;
+	private final BodyCache sent;
+	private final BodyCache received;
+	private final LinkedHashMap <String, Long> confirmations; // "peer hash" to time confirmed, guarded by itself
+	private volatile long confirmationTTL;
+	private volatile Fetcher fetcher;
+
+	private final LongAdder refsSent;
+	private final LongAdder bodiesSent;
+	private final LongAdder hits;
+	private final LongAdder misses;
+
+
+	/**
+	 * A codec with the default threshold and cache sizes
+	 */
+	public DedupPayloadCodec() {
+		this(DEFAULT_THRESHOLD, DEFAULT_CACHE_ENTRIES, DEFAULT_CACHE_CHARS);
+	}
+
+	/**
+	 * @param threshold the size in chars of XML from which payloads are deduplicated
+	 * @param cacheEntries the most payloads to keep, of those sent and of those received
+	 * @param cacheChars the most chars of XML to keep, of those sent and of those received
+	 */
+	public DedupPayloadCodec(int threshold, int cacheEntries, long cacheChars) {
+		this.threshold = threshold;
+		this.sent = new BodyCache(cacheEntries, cacheChars);
+		this.received = new BodyCache(cacheEntries, cacheChars);
+		this.confirmations = new LinkedHashMap <String, Long> (16, 0.75F, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry <String, Long> eldest) {
+				return size() > MAX_CONFIRMATIONS;
+			}
+		};
+		this.confirmationTTL = DEFAULT_CONFIRMATION_TTL;
+		this.refsSent = new LongAdder();
+		this.bodiesSent = new LongAdder();
+		this.hits = new LongAdder();
+		this.misses = new LongAdder();
+	}
+
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * @param fetcher fetches the payloads of references that miss the cache
+	 */
+	public void setFetcher(Fetcher fetcher) {
+		this.fetcher = fetcher;
+	}
+
+	/**
+	 * @param ttl msec for which a peer's confirmation that it holds a payload is trusted
+	 */
+	public void setConfirmationTTL(long ttl) {
+		this.confirmationTTL = ttl;
+	}
+
+
+	/**
+	 * Record that peer holds the payload with this hash, so it can be sent references to it
+	 */
+	public void confirm(String peer, String hash) {
+		synchronized (confirmations) {
+			confirmations.put(peer+" "+hash, Long.valueOf(System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Forget every confirmation from peer, e.g. when it goes offline
+	 */
+	public void forgetPeer(String peer) {
+		String prefix = peer+" ";
+		synchronized (confirmations) {
+			Iterator <String> it = confirmations.keySet().iterator();
+			while (it.hasNext()) {
+				if (it.next().startsWith(prefix))
+					it.remove();
+			}
+		}
+	}
+
+	private boolean isConfirmed(String peer, String hash) {
+		synchronized (confirmations) {
+			Long when = confirmations.get(peer+" "+hash);
+			return (when != null) && ((System.currentTimeMillis() - when.longValue()) < confirmationTTL);
+		}
+	}
+
+	/**
+	 * @return the payload this end sent with this hash, if it is still held; otherwise null
+	 */
+	public String getSentBody(String hash) {
+		return sent.get(hash);
+	}
+
+
+	public void encode(UniversalIQ iq, Writer out)
+	throws IOException {
+		StringBuilderWriter xml = new StringBuilderWriter(1024);
+		CompactWriter cw = new CompactWriter(xml);
+		UniversalIQ.getXStreamInstance().marshal(iq, cw);
+		cw.flush();
+		String payload = xml.toString();
+		if (payload.length() < threshold) {
+			out.write(payload);
+			return;
+		}
+		String hash = hash(payload);
+		sent.put(hash, payload);
+		String to = iq.getTo();
+		if ((to != null) && isConfirmed(to, hash) && sent.contains(hash)) {
+			out.write("<"+REF+" "+HASH+"=\""+hash+"\"/>");
+			refsSent.increment();
+		}
+		else {
+			out.write("<"+BODY+" "+HASH+"=\""+hash+"\">");
+			writeEscaped(payload, out);
+			out.write("</"+BODY+">");
+			bodiesSent.increment();
+		}
+	}
+
+	public UniversalIQ decode(XmlPullParser parser, Class <? extends UniversalIQ> iqClass)
+	throws Exception {
+		int queryDepth = parser.getDepth();
+		int eventType = parser.next();
+		while (eventType != XmlPullParser.START_TAG) {
+			if ((eventType == XmlPullParser.END_TAG) || (eventType == XmlPullParser.END_DOCUMENT))
+				throw new XmlPullParserException("No payload found in IQ at "+parser.getPositionDescription());
+			eventType = parser.next();
+		}
+
+		XStream xs = UniversalIQ.getXStreamInstance();
+		Object result;
+		if (REF.equals(parser.getName())) {
+			final String hash = hashAttribute(parser);
+			String body = received.get(hash);
+			if (body == null)
+				body = sent.get(hash); // talking to ourselves
+			if (body != null) {
+				hits.increment();
+				result = xs.fromXML(body);
+			}
+			else {
+				misses.increment();
+				final UniversalIQ iq = (UniversalIQ) xs.getReflectionProvider().newInstance(iqClass);
+				iq.setLazySource(new Callable <String> () {
+					public String call()
+					throws Exception {
+						return fetch(iq.getFrom(), hash);
+					}
+				}, xs);
+				result = iq;
+			}
+		}
+		else if (BODY.equals(parser.getName())) {
+			String hash = hashAttribute(parser);
+			String xml = parser.nextText(); // leaves the parser on the body's END_TAG
+			if (xml.length() == 0)
+				throw new XmlPullParserException("Empty "+BODY+" at "+parser.getPositionDescription());
+			// the body is cached under the sender's hash, so a body that doesn't match it would poison later refs to that hash
+			if (! hash.equals(hash(xml)))
+				throw new XmlPullParserException(BODY+" does not match hash "+hash+" at "+parser.getPositionDescription());
+			received.put(hash, xml);
+			result = xs.fromXML(xml);
+			if (result instanceof UniversalIQ)
+				((UniversalIQ) result).setDedupHash(hash);
+		}
+		else { // under the threshold: plain XStream XML
+			PullParserReader reader = new PullParserReader(parser);
+			result = xs.unmarshal(reader);
+			reader.finish();
+		}
+
+		// and on through the end of the query
+		while ((parser.getEventType() != XmlPullParser.END_TAG) || (parser.getDepth() > queryDepth))
+			parser.next();
+		if (! iqClass.isInstance(result))
+			throw new XmlPullParserException("Payload is not a "+iqClass.getName()+" at "+parser.getPositionDescription());
+		return (UniversalIQ) result;
+	}
+
+	/**
+	 * Fetch a payload that missed the cache, check it is what the hash says, and cache it
+	 */
+	private String fetch(String from, String hash)
+	throws Exception {
+		Fetcher f = fetcher;
+		if (f == null)
+			throw new IllegalStateException("Payload "+hash+" is not cached and there is no Fetcher to get it from "+from);
+		String body = f.fetch(from, hash);
+		if ((body == null) || (! hash.equals(hash(body))))
+			throw new IllegalStateException("Payload fetched from "+from+" does not match hash "+hash);
+		received.put(hash, body);
+		return body;
+	}
+
+	private static String hashAttribute(XmlPullParser parser)
+	throws XmlPullParserException {
+		int count = parser.getAttributeCount();
+		for (int i = 0; i < count; i++) {
+			if (HASH.equals(parser.getAttributeName(i)))
+				return parser.getAttributeValue(i);
+		}
+		throw new XmlPullParserException("No "+HASH+" on "+parser.getName()+" at "+parser.getPositionDescription());
+	}
+
+	/**
+	 * Write xml as element text. A parser gives back exactly these chars: '\r' is escaped too, as parsers normalize line ends
+	 */
+	private static void writeEscaped(String xml, Writer out)
+	throws IOException {
+		int start = 0;
+		for (int i = 0; i < xml.length(); i++) {
+			String escape;
+			switch (xml.charAt(i)) {
+			case '&': escape = "&amp;"; break;
+			case '<': escape = "&lt;"; break;
+			case '>': escape = "&gt;"; break;
+			case '\r': escape = "&#13;"; break;
+			default: continue;
+			}
+			out.append(xml, start, i).write(escape);
+			start = i + 1;
+		}
+		out.append(xml, start, xml.length());
+	}
+
+	/**
+	 * @return the SHA-256 of the UTF-8 of xml, in hex
+	 */
+	static String hash(String xml) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException nsae) { // every JRE has SHA-256
+			throw new IllegalStateException(nsae);
+		}
+		byte[] digest = md.digest(xml.getBytes(StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+
+	/**
+	 * @return the number of payloads sent as references
+	 */
+	public long getRefsSent() {
+		return refsSent.sum();
+	}
+
+	/**
+	 * @return the number of payloads over the threshold sent in full
+	 */
+	public long getBodiesSent() {
+		return bodiesSent.sum();
+	}
+
+	/**
+	 * @return the number of references resolved from the cache
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of references that had to be fetched
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of payloads held, as received
+	 */
+	public int getCachedCount() {
+		return received.size();
+	}
+
+
+	// for testing
+	public static class TestPayload
+	extends UniversalIQ {
+		java.util.List <Object> items;
+	}
+
+	// for testing - XStream writes an empty collection as <list/> and a null as <null/>: the body must still match its hash
+	public static void main(String[] args)
+	throws Exception {
+		TestPayload iq = new TestPayload();
+		iq.items = new java.util.ArrayList <Object> ();
+		iq.items.add(new java.util.ArrayList <String> ());
+		iq.items.add(null);
+		iq.items.add("a < b & c\r\n");
+		DedupPayloadCodec codec = new DedupPayloadCodec(0, DEFAULT_CACHE_ENTRIES, DEFAULT_CACHE_CHARS);
+		StringBuilderWriter out = new StringBuilderWriter(1024);
+		out.write("<query>");
+		codec.encode(iq, out);
+		out.write("</query>");
+		System.out.println(out.toString());
+		XmlPullParser parser = org.xmlpull.v1.XmlPullParserFactory.newInstance().newPullParser();
+		parser.setInput(new java.io.StringReader(out.toString()));
+		parser.next();
+		TestPayload back = (TestPayload) codec.decode(parser, TestPayload.class);
+		System.out.println("Decoded "+back.items+", cached "+codec.getCachedCount());
+	}
+
+}
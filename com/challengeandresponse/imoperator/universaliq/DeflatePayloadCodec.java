@@ -0,0 +1,169 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+
+/**
+ * XStream's XML, deflated and sent as base64 when it is large enough to be worth it. Payloads below the
+ * threshold are sent as plain XStream XML, so small packets don't pay for compressing. Either way the query
+ * carries codec="deflate", and decode() tells them apart by what the query holds: an element, or text.
+ * <p>For servers without stream compression. Choose it for the namespaces that carry big payloads, e.g.
+ * PayloadCodecRegistry.setCodec(MMList.class, new DeflatePayloadCodec(4096)), at both ends: a receiver
+ * needs only the codec registered, whatever its threshold.</p>
+ * <p>A deflated payload that would inflate to more than the codec's maximum size is refused, so a small
+ * packet can't make the receiver allocate without limit.</p>
+ *
+ * @author jim
+ *
+ */
+public class DeflatePayloadCodec
+implements PayloadCodec {
+
+	public static final String NAME = "deflate";
+	public static final int DEFAULT_THRESHOLD = 1024; // chars of XML
+	public static final int DEFAULT_MAX_INFLATED_SIZE = 16 * 1024 * 1024; // bytes of XML
+
+	private static final int BUFFER_SIZE = 8192;
+
+	// Deflaters and Inflaters hold native memory, so each thread keeps one of each rather than making them per packet
+	private static final ThreadLocal <Deflater> deflaters = new ThreadLocal <Deflater> () {
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION);
+		}
+	};
+	private static final ThreadLocal <Inflater> inflaters = new ThreadLocal <Inflater> () {
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private final int threshold;
+	private final int maxInflatedSize;
+
+	/**
+	 * Compress payloads of DEFAULT_THRESHOLD chars or more
+	 */
+	public DeflatePayloadCodec() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold the size in chars of XML from which payloads are compressed
+	 */
+	public DeflatePayloadCodec(int threshold) {
+		this(threshold, DEFAULT_MAX_INFLATED_SIZE);
+	}
+
+	/**
+	 * @param threshold the size in chars of XML from which payloads are compressed
+	 * @param maxInflatedSize the largest payload, in bytes of XML, that decode() will inflate
+	 */
+	public DeflatePayloadCodec(int threshold, int maxInflatedSize) {
+		if (maxInflatedSize <= 0)
+			throw new IllegalArgumentException("maxInflatedSize must be positive: "+maxInflatedSize);
+		this.threshold = threshold;
+		this.maxInflatedSize = maxInflatedSize;
+	}
+
+	public String getName() {
+		return NAME;
+	}
+
+
+	public void encode(UniversalIQ iq, Writer out)
+	throws IOException {
+		StringBuilderWriter xml = new StringBuilderWriter(1024);
+		CompactWriter cw = new CompactWriter(xml);
+		UniversalIQ.getXStreamInstance().marshal(iq, cw);
+		cw.flush();
+		String payload = xml.toString();
+		if (payload.length() < threshold)
+			out.write(payload);
+		else
+			out.write(Base64.getEncoder().encodeToString(deflate(payload.getBytes(StandardCharsets.UTF_8))));
+	}
+
+	public UniversalIQ decode(XmlPullParser parser, Class <? extends UniversalIQ> iqClass)
+	throws Exception {
+		int queryDepth = parser.getDepth();
+		StringBuilder text = new StringBuilder();
+		int eventType = parser.next();
+		while ((eventType != XmlPullParser.START_TAG) && (eventType != XmlPullParser.END_TAG)) {
+			if ((eventType == XmlPullParser.TEXT) || (eventType == XmlPullParser.CDSECT) || (eventType == XmlPullParser.ENTITY_REF))
+				text.append(parser.getText());
+			else if (eventType == XmlPullParser.END_DOCUMENT)
+				throw new XmlPullParserException("Unexpected end of document in deflated payload");
+			eventType = parser.next();
+		}
+
+		Object result;
+		if (eventType == XmlPullParser.START_TAG) { // under the threshold: plain XStream XML
+			PullParserReader reader = new PullParserReader(parser);
+			result = UniversalIQ.getXStreamInstance().unmarshal(reader);
+			reader.finish();
+			while ((parser.getEventType() != XmlPullParser.END_TAG) || (parser.getDepth() > queryDepth))
+				parser.next();
+		}
+		else { // on the query's END_TAG
+			byte[] xml;
+			try {
+				xml = inflate(Base64.getMimeDecoder().decode(text.toString().trim()));
+			}
+			catch (IllegalArgumentException iae) {
+				throw new XmlPullParserException("Deflated payload is not base64: "+iae.getMessage());
+			}
+			result = UniversalIQ.getXStreamInstance().fromXML(new String(xml, StandardCharsets.UTF_8));
+		}
+		if (! iqClass.isInstance(result))
+			throw new XmlPullParserException("Deflated payload is not a "+iqClass.getName()+" at "+parser.getPositionDescription());
+		return (UniversalIQ) result;
+	}
+
+
+	private static byte[] deflate(byte[] input) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(input);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, input.length / 4));
+		byte[] buffer = new byte[BUFFER_SIZE];
+		while (! deflater.finished())
+			out.write(buffer, 0, deflater.deflate(buffer));
+		return out.toByteArray();
+	}
+
+	private byte[] inflate(byte[] input)
+	throws XmlPullParserException {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(input);
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(input.length * 4L, maxInflatedSize));
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try {
+			while (! inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if ((n == 0) && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new XmlPullParserException("Deflated payload is truncated");
+				if (out.size() + n > maxInflatedSize)
+					throw new XmlPullParserException("Deflated payload inflates to more than "+maxInflatedSize+" bytes");
+				out.write(buffer, 0, n);
+			}
+		}
+		catch (DataFormatException dfe) {
+			throw new XmlPullParserException("Deflated payload is corrupt: "+dfe.getMessage());
+		}
+		return out.toByteArray();
+	}
+
+}
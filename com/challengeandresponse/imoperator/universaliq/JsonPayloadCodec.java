@@ -0,0 +1,512 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * A compact JSON codec for simple payloads. The IQ's fields (below UniversalIQ, as with XStream) are written as one
+ * JSON object, as the text of the query element: &lt;query xmlns="..." codec="json"&gt;{"oid":"x","count":3}&lt;/query&gt;.
+ * There are no class names in the output, which is what makes it small, so a payload must be decodable from its
+ * declared field types alone:
+ * <ul>
+ * <li>primitives and their wrappers, Strings, Characters and enums</li>
+ * <li>arrays, Lists, Sets and Collections of those, with the element type given by the array or the type parameter</li>
+ * <li>Maps, whose keys are written as Strings and must be declared as String or Object</li>
+ * <li>other objects with a concrete declared type, made of the same things</li>
+ * </ul>
+ * A field declared as Object (such as the object in an MMObject) comes back as the nearest JSON type: String, Long or
+ * Double, Boolean, List or Map. Payload types that don't fit these rules should stay on XStream.
+ * <p>Objects are made without running a constructor, the way XStream makes them, and transient fields are
+ * not written.</p>
+ *
+ * @author jim
+ *
+ */
+public class JsonPayloadCodec
+implements PayloadCodec {
+
+	public static final String NAME = "json";
+
+	// the serialized fields of each class, made accessible once
+	private static final ClassValue <Field[]> fields = new ClassValue <Field[]> () {
+		protected Field[] computeValue(Class <?> type) {
+			ArrayList <Field> result = new ArrayList <Field> ();
+			for (Class <?> c = type; (c != null) && (c != UniversalIQ.class) && (c != Object.class); c = c.getSuperclass()) {
+				for (Field f : c.getDeclaredFields()) {
+					int modifiers = f.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || f.isSynthetic())
+						continue;
+					f.setAccessible(true);
+					result.add(f);
+				}
+			}
+			return result.toArray(new Field[result.size()]);
+		}
+	};
+
+	public String getName() {
+		return NAME;
+	}
+
+
+	public void encode(UniversalIQ iq, Writer out)
+	throws IOException {
+		iq.materialize();
+		StringBuilder json = new StringBuilder(256);
+		writeObject(json, iq);
+		// the JSON is the text of the query element, so escape what XML requires
+		int start = 0;
+		for (int i = 0; i < json.length(); i++) {
+			String escape;
+			switch (json.charAt(i)) {
+			case '&': escape = "&amp;"; break;
+			case '<': escape = "&lt;"; break;
+			case '>': escape = "&gt;"; break;
+			default: continue;
+			}
+			out.append(json, start, i).write(escape);
+			start = i + 1;
+		}
+		out.append(json, start, json.length());
+	}
+
+	public UniversalIQ decode(XmlPullParser parser, Class <? extends UniversalIQ> iqClass)
+	throws Exception {
+		String text = parser.nextText(); // leaves the parser on the query's END_TAG
+		Object tree = new Parser(text).parseDocument();
+		if (! (tree instanceof Map))
+			throw new XmlPullParserException("JSON payload is not an object, at "+parser.getPositionDescription());
+		return (UniversalIQ) bind(castMap(tree), iqClass);
+	}
+
+
+	private static void writeObject(StringBuilder sb, Object o)
+	throws IOException {
+		sb.append('{');
+		boolean first = true;
+		for (Field f : fields.get(o.getClass())) {
+			Object value;
+			try {
+				value = f.get(o);
+			}
+			catch (IllegalAccessException iae) {
+				throw new IOException("Can't read "+f, iae);
+			}
+			if (value == null)
+				continue;
+			if (! first)
+				sb.append(',');
+			first = false;
+			writeString(sb, f.getName());
+			sb.append(':');
+			writeValue(sb, value);
+		}
+		sb.append('}');
+	}
+
+	private static void writeValue(StringBuilder sb, Object value)
+	throws IOException {
+		if (value == null)
+			sb.append("null");
+		else if ((value instanceof String) || (value instanceof Character))
+			writeString(sb, value.toString());
+		else if (value instanceof Enum)
+			writeString(sb, ((Enum <?>) value).name());
+		else if (value instanceof Boolean)
+			sb.append(value.toString());
+		else if (value instanceof Number) {
+			if (((value instanceof Double) || (value instanceof Float)) && (Double.isNaN(((Number) value).doubleValue()) || Double.isInfinite(((Number) value).doubleValue())))
+				writeString(sb, value.toString()); // JSON has no literal for these
+			else
+				sb.append(value.toString());
+		}
+		else if (value.getClass().isArray()) {
+			sb.append('[');
+			int length = Array.getLength(value);
+			for (int i = 0; i < length; i++) {
+				if (i > 0)
+					sb.append(',');
+				writeValue(sb, Array.get(value, i));
+			}
+			sb.append(']');
+		}
+		else if (value instanceof Collection) {
+			sb.append('[');
+			boolean first = true;
+			for (Object element : (Collection <?>) value) {
+				if (! first)
+					sb.append(',');
+				first = false;
+				writeValue(sb, element);
+			}
+			sb.append(']');
+		}
+		else if (value instanceof Map) {
+			sb.append('{');
+			boolean first = true;
+			for (Map.Entry <?, ?> e : ((Map <?, ?>) value).entrySet()) {
+				if (! first)
+					sb.append(',');
+				first = false;
+				writeString(sb, String.valueOf(e.getKey()));
+				sb.append(':');
+				writeValue(sb, e.getValue());
+			}
+			sb.append('}');
+		}
+		else
+			writeObject(sb, value);
+	}
+
+	private static void writeString(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				// control characters aren't legal in XML text either, so they travel escaped
+				if ((c < 0x20) || (c == 0xfffe) || (c == 0xffff))
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+
+	/**
+	 * Make an instance of type without running a constructor, and set its fields from map
+	 */
+	private static Object bind(Map <String, Object> map, Class <?> type)
+	throws XmlPullParserException {
+		Object o = UniversalIQ.getXStreamInstance().getReflectionProvider().newInstance(type);
+		for (Field f : fields.get(type)) {
+			if (! map.containsKey(f.getName()))
+				continue;
+			Object value = convert(map.get(f.getName()), f.getType(), f.getGenericType());
+			if ((value == null) && f.getType().isPrimitive())
+				continue;
+			try {
+				f.set(o, value);
+			}
+			catch (IllegalAccessException iae) {
+				throw new XmlPullParserException("Can't set "+f+": "+iae.getMessage());
+			}
+		}
+		return o;
+	}
+
+	/**
+	 * @param value a parsed JSON value: null, String, Long, Double, Boolean, List or Map
+	 * @param type the declared type it is to become
+	 * @param genericType the declared type with its type parameters, for the elements of collections and maps
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object convert(Object value, Class <?> type, Type genericType)
+	throws XmlPullParserException {
+		if (value == null)
+			return null;
+		if ((type == Object.class) || type.isInstance(value) && (! (value instanceof Collection)) && (! (value instanceof Map)))
+			return value;
+		if ((type == String.class) || (type == CharSequence.class))
+			return value.toString();
+		if ((type == char.class) || (type == Character.class)) {
+			String s = value.toString();
+			return (s.length() > 0) ? Character.valueOf(s.charAt(0)) : null;
+		}
+		if ((type == boolean.class) || (type == Boolean.class))
+			return Boolean.valueOf(value.toString());
+		if (type.isEnum())
+			return Enum.valueOf((Class <? extends Enum>) type, value.toString());
+		if (type.isPrimitive() || Number.class.isAssignableFrom(type)) {
+			Number n = (value instanceof Number) ? (Number) value : Double.valueOf(value.toString());
+			if ((type == int.class) || (type == Integer.class))
+				return Integer.valueOf(n.intValue());
+			if ((type == long.class) || (type == Long.class))
+				return Long.valueOf(n.longValue());
+			if ((type == double.class) || (type == Double.class))
+				return Double.valueOf(n.doubleValue());
+			if ((type == float.class) || (type == Float.class))
+				return Float.valueOf(n.floatValue());
+			if ((type == short.class) || (type == Short.class))
+				return Short.valueOf(n.shortValue());
+			if ((type == byte.class) || (type == Byte.class))
+				return Byte.valueOf(n.byteValue());
+			return n;
+		}
+		if (type.isArray()) {
+			List <Object> list = castList(value);
+			Class <?> componentType = type.getComponentType();
+			Object array = Array.newInstance(componentType, list.size());
+			for (int i = 0; i < list.size(); i++) {
+				Object element = convert(list.get(i), componentType, componentType);
+				if ((element != null) || (! componentType.isPrimitive()))
+					Array.set(array, i, element);
+			}
+			return array;
+		}
+		if (Collection.class.isAssignableFrom(type)) {
+			Collection <Object> result;
+			if (! type.isInterface())
+				result = (Collection <Object>) UniversalIQ.getXStreamInstance().getReflectionProvider().newInstance(type);
+			else if (Set.class.isAssignableFrom(type))
+				result = new LinkedHashSet <Object> ();
+			else
+				result = new ArrayList <Object> ();
+			Type elementType = typeArgument(genericType, 0);
+			for (Object element : castList(value))
+				result.add(convert(element, rawClass(elementType), elementType));
+			return result;
+		}
+		if (Map.class.isAssignableFrom(type)) {
+			Map <Object, Object> result = type.isInterface() ? new LinkedHashMap <Object, Object> () : (Map <Object, Object>) UniversalIQ.getXStreamInstance().getReflectionProvider().newInstance(type);
+			Type valueType = typeArgument(genericType, 1);
+			for (Map.Entry <String, Object> e : castMap(value).entrySet())
+				result.put(e.getKey(), convert(e.getValue(), rawClass(valueType), valueType));
+			return result;
+		}
+		if (type.isInterface() || Modifier.isAbstract(type.getModifiers()))
+			throw new XmlPullParserException("JSON can't decode a value declared as "+type.getName());
+		return bind(castMap(value), type);
+	}
+
+	private static Type typeArgument(Type genericType, int index) {
+		if (genericType instanceof ParameterizedType) {
+			Type[] args = ((ParameterizedType) genericType).getActualTypeArguments();
+			if (index < args.length)
+				return args[index];
+		}
+		return Object.class;
+	}
+
+	private static Class <?> rawClass(Type t) {
+		if (t instanceof Class)
+			return (Class <?>) t;
+		if (t instanceof ParameterizedType)
+			return (Class <?>) ((ParameterizedType) t).getRawType();
+		return Object.class; // type variables and wildcards
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List <Object> castList(Object value)
+	throws XmlPullParserException {
+		if (! (value instanceof List))
+			throw new XmlPullParserException("Expected a JSON array, not "+value);
+		return (List <Object>) value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map <String, Object> castMap(Object value)
+	throws XmlPullParserException {
+		if (! (value instanceof Map))
+			throw new XmlPullParserException("Expected a JSON object, not "+value);
+		return (Map <String, Object>) value;
+	}
+
+
+	/**
+	 * Parses JSON text into Maps (LinkedHashMap), Lists (ArrayList), Strings, Longs, Doubles, Booleans and nulls
+	 */
+	private static class Parser {
+		private final String text;
+		private int pos;
+
+		Parser(String text) {
+			this.text = text;
+			this.pos = 0;
+		}
+
+		Object parseDocument()
+		throws XmlPullParserException {
+			Object result = parseValue();
+			skipWhitespace();
+			if (pos != text.length())
+				throw error("trailing characters");
+			return result;
+		}
+
+		private Object parseValue()
+		throws XmlPullParserException {
+			skipWhitespace();
+			if (pos >= text.length())
+				throw error("unexpected end");
+			char c = text.charAt(pos);
+			switch (c) {
+			case '{': return parseObject();
+			case '[': return parseArray();
+			case '"': return parseString();
+			case 't': return literal("true", Boolean.TRUE);
+			case 'f': return literal("false", Boolean.FALSE);
+			case 'n': return literal("null", null);
+			default: return parseNumber();
+			}
+		}
+
+		private Map <String, Object> parseObject()
+		throws XmlPullParserException {
+			LinkedHashMap <String, Object> map = new LinkedHashMap <String, Object> ();
+			pos++; // {
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return map;
+			}
+			while (true) {
+				skipWhitespace();
+				if (peek() != '"')
+					throw error("expected a name");
+				String name = parseString();
+				skipWhitespace();
+				expect(':');
+				map.put(name, parseValue());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+					continue;
+				}
+				expect('}');
+				return map;
+			}
+		}
+
+		private List <Object> parseArray()
+		throws XmlPullParserException {
+			ArrayList <Object> list = new ArrayList <Object> ();
+			pos++; // [
+			skipWhitespace();
+			if (peek() == ']') {
+				pos++;
+				return list;
+			}
+			while (true) {
+				list.add(parseValue());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+					continue;
+				}
+				expect(']');
+				return list;
+			}
+		}
+
+		private String parseString()
+		throws XmlPullParserException {
+			pos++; // opening quote
+			StringBuilder sb = null;
+			int start = pos;
+			while (true) {
+				if (pos >= text.length())
+					throw error("unterminated string");
+				char c = text.charAt(pos);
+				if (c == '"') {
+					String result = (sb == null) ? text.substring(start, pos) : sb.append(text, start, pos).toString();
+					pos++;
+					return result;
+				}
+				if (c != '\\') {
+					pos++;
+					continue;
+				}
+				if (sb == null)
+					sb = new StringBuilder();
+				sb.append(text, start, pos);
+				if (pos + 1 >= text.length())
+					throw error("unterminated escape");
+				char e = text.charAt(pos + 1);
+				pos += 2;
+				switch (e) {
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if (pos + 4 > text.length())
+						throw error("short \\u escape");
+					try {
+						sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+					}
+					catch (NumberFormatException nfe) {
+						throw error("bad \\u escape");
+					}
+					pos += 4;
+					break;
+				default: sb.append(e); // \" \\ \/
+				}
+				start = pos;
+			}
+		}
+
+		private Object parseNumber()
+		throws XmlPullParserException {
+			int start = pos;
+			boolean integral = true;
+			while (pos < text.length()) {
+				char c = text.charAt(pos);
+				if ((c == '.') || (c == 'e') || (c == 'E'))
+					integral = false;
+				else if (((c < '0') || (c > '9')) && (c != '-') && (c != '+'))
+					break;
+				pos++;
+			}
+			String number = text.substring(start, pos);
+			try {
+				return integral ? (Object) Long.valueOf(number) : (Object) Double.valueOf(number);
+			}
+			catch (NumberFormatException nfe) {
+				throw error("bad number "+number);
+			}
+		}
+
+		private Object literal(String word, Object value)
+		throws XmlPullParserException {
+			if (! text.startsWith(word, pos))
+				throw error("unknown literal");
+			pos += word.length();
+			return value;
+		}
+
+		private void skipWhitespace() {
+			while ((pos < text.length()) && Character.isWhitespace(text.charAt(pos)))
+				pos++;
+		}
+
+		private char peek() {
+			return (pos < text.length()) ? text.charAt(pos) : 0;
+		}
+
+		private void expect(char c)
+		throws XmlPullParserException {
+			if (peek() != c)
+				throw error("expected '"+c+"'");
+			pos++;
+		}
+
+		private XmlPullParserException error(String message) {
+			return new XmlPullParserException("Bad JSON payload: "+message+" at offset "+pos);
+		}
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a UniversalIQ subclass for which MarshallerProcessor generates a dedicated XStream Converter at
+ * compile time, named after the class with "_Marshaller" appended. The converter reads and writes the
+ * class's fields directly or through their getters and setters, instead of discovering them by reflection
+ * on every packet, and produces the same XML as XStream's reflection does, so peers need not both use it.
+ * <p>The converter is installed by UniversalIQRegistry.useGeneratedMarshaller(), which register() calls.
+ * Classes without one keep going through XStream's reflection.</p>
+ * <p>The class must be a static, non-abstract UniversalIQ subclass with a no-argument constructor.</p>
+ *
+ * @author jim
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface Marshalled {
+}
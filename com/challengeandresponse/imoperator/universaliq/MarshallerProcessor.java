@@ -0,0 +1,393 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Annotation processor that writes an XStream Converter for each class marked @Marshalled.
+ * The generated class, ClassName_Marshaller in the same package, handles the fields that XStream's reflection
+ * would serialize (non-static, non-transient, declared below UniversalIQ), under the same element names and
+ * with the same "class" attributes, so its XML is interchangeable with XStream's.<br />
+ * - Primitives, their wrappers and Strings are written and parsed inline<br />
+ * - Anything else is handed back to XStream (context.convertAnother()), which may use another generated converter<br />
+ * Each field is read and written directly if the generated class can see it, otherwise through a getter and setter
+ * named for it (getX/isX/setX, any case), otherwise through a java.lang.reflect.Field looked up once, when the
+ * converter class loads.
+ * <p>Enable it by naming it to the compiler once it is compiled, e.g.<br />
+ * javac -processorpath bin -processor com.challengeandresponse.imoperator.universaliq.MarshallerProcessor ...<br />
+ * It is deliberately not registered as a service in this source tree, because javac would then try to load it
+ * while compiling the tree itself.</p>
+ *
+ * @author jim
+ *
+ */
+@SupportedAnnotationTypes("com.challengeandresponse.imoperator.universaliq.Marshalled")
+public class MarshallerProcessor
+extends AbstractProcessor {
+
+	public static final String SUFFIX = "_Marshaller";
+
+	private static final String UNIVERSAL_IQ = "com.challengeandresponse.imoperator.universaliq.UniversalIQ";
+
+	/**
+	 * How one field is read and written
+	 */
+	private static class Property {
+		String name; // field name, which is also the element name
+		String type; // erased type, as source
+		TypeKind kind;
+		boolean simple; // primitive, wrapper or String
+		String read; // expression for the value of the field in 'v'
+		String write; // statement setting the field in 'v' to 'value'
+		String fieldHandle; // name of the static Field, if reflection is needed
+		String declaringClass; // binary name of the declaring class, for the Field lookup
+	}
+
+
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	public boolean process(Set <? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for (Element e : roundEnv.getElementsAnnotatedWith(Marshalled.class)) {
+			if (e.getKind() != ElementKind.CLASS) {
+				error(e, "@Marshalled applies to classes only");
+				continue;
+			}
+			try {
+				generate((TypeElement) e);
+			}
+			catch (IOException ioe) {
+				error(e, "Could not write the marshaller: "+ioe.getMessage());
+			}
+		}
+		return true;
+	}
+
+
+	private void generate(TypeElement te)
+	throws IOException {
+		if (! check(te))
+			return;
+		String pkg = processingEnv.getElementUtils().getPackageOf(te).getQualifiedName().toString();
+		String binaryName = processingEnv.getElementUtils().getBinaryName(te).toString();
+		String generated = (pkg.length() > 0 ? binaryName.substring(pkg.length() + 1) : binaryName) + SUFFIX;
+		String target = te.getQualifiedName().toString();
+
+		List <Property> properties = properties(te, pkg);
+		if (properties == null)
+			return;
+
+		StringBuilder sb = new StringBuilder();
+		if (pkg.length() > 0)
+			sb.append("package ").append(pkg).append(";\n\n");
+		sb.append("import com.thoughtworks.xstream.converters.ConversionException;\n");
+		sb.append("import com.thoughtworks.xstream.converters.Converter;\n");
+		sb.append("import com.thoughtworks.xstream.converters.MarshallingContext;\n");
+		sb.append("import com.thoughtworks.xstream.converters.UnmarshallingContext;\n");
+		sb.append("import com.thoughtworks.xstream.io.HierarchicalStreamReader;\n");
+		sb.append("import com.thoughtworks.xstream.io.HierarchicalStreamWriter;\n");
+		sb.append("import com.thoughtworks.xstream.mapper.Mapper;\n\n");
+		sb.append("/**\n * XStream Converter for ").append(target).append(", generated by MarshallerProcessor. Do not edit.\n */\n");
+		sb.append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n");
+		sb.append("public class ").append(generated).append("\nimplements Converter {\n\n");
+
+		for (Property p : properties) {
+			if (p.fieldHandle != null)
+				sb.append("\tprivate static final java.lang.reflect.Field ").append(p.fieldHandle)
+				.append(" = field(\"").append(p.declaringClass).append("\", \"").append(p.name).append("\");\n");
+		}
+		sb.append("\n\tprivate final Mapper mapper;\n\n");
+		sb.append("\tpublic ").append(generated).append("(Mapper mapper) {\n\t\tthis.mapper = mapper;\n\t}\n\n");
+		sb.append("\tpublic boolean canConvert(Class type) {\n\t\treturn (type == ").append(target).append(".class);\n\t}\n\n");
+
+		// MARSHAL
+		sb.append("\tpublic void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {\n");
+		sb.append("\t\t").append(target).append(" v = (").append(target).append(") source;\n");
+		for (Property p : properties) {
+			sb.append("\t\t{\n\t\t\t").append(p.type).append(" x = ").append(p.read).append(";\n");
+			String indent = "\t\t\t";
+			if (p.kind.isPrimitive()) { // always written, like XStream does
+				sb.append(indent).append("writer.startNode(\"").append(p.name).append("\");\n");
+				sb.append(indent).append("writer.setValue(String.valueOf(x));\n");
+				sb.append(indent).append("writer.endNode();\n");
+			}
+			else {
+				sb.append(indent).append("if (x != null) {\n");
+				sb.append(indent).append("\twriter.startNode(\"").append(p.name).append("\");\n");
+				if (p.simple) {
+					sb.append(indent).append("\twriter.setValue(String.valueOf(x));\n");
+				}
+				else {
+					sb.append(indent).append("\twriteClass(writer, x, ").append(p.type).append(".class);\n");
+					sb.append(indent).append("\tcontext.convertAnother(x);\n");
+				}
+				sb.append(indent).append("\twriter.endNode();\n");
+				sb.append(indent).append("}\n");
+			}
+			sb.append("\t\t}\n");
+		}
+		sb.append("\t}\n\n");
+
+		// UNMARSHAL
+		sb.append("\tpublic Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {\n");
+		sb.append("\t\t").append(target).append(" v = (").append(target).append(") context.currentObject();\n");
+		sb.append("\t\tif (v == null)\n\t\t\tv = new ").append(target).append("();\n");
+		sb.append("\t\twhile (reader.hasMoreChildren()) {\n");
+		sb.append("\t\t\treader.moveDown();\n");
+		sb.append("\t\t\tswitch (reader.getNodeName()) {\n");
+		for (Property p : properties) {
+			sb.append("\t\t\tcase \"").append(p.name).append("\": {\n");
+			sb.append("\t\t\t\t").append(p.type).append(" value = ").append(parse(p)).append(";\n");
+			sb.append("\t\t\t\t").append(p.write).append("\n");
+			sb.append("\t\t\t\tbreak;\n\t\t\t}\n");
+		}
+		sb.append("\t\t\tdefault: // a field this version doesn't have\n\t\t\t\tbreak;\n");
+		sb.append("\t\t\t}\n");
+		sb.append("\t\t\treader.moveUp();\n");
+		sb.append("\t\t}\n");
+		sb.append("\t\treturn v;\n");
+		sb.append("\t}\n\n");
+
+		// HELPERS
+		sb.append("\tprivate void writeClass(HierarchicalStreamWriter writer, Object value, Class declared) {\n");
+		sb.append("\t\tif (value.getClass() != mapper.defaultImplementationOf(declared))\n");
+		sb.append("\t\t\twriter.addAttribute(\"class\", mapper.serializedClass(value.getClass()));\n");
+		sb.append("\t}\n\n");
+		sb.append("\tprivate Class readClass(HierarchicalStreamReader reader, Class declared) {\n");
+		sb.append("\t\tString name = reader.getAttribute(\"class\");\n");
+		sb.append("\t\treturn (name != null) ? mapper.realClass(name) : mapper.defaultImplementationOf(declared);\n");
+		sb.append("\t}\n\n");
+		sb.append("\tprivate static java.lang.reflect.Field field(String className, String name) {\n");
+		sb.append("\t\ttry {\n");
+		sb.append("\t\t\tjava.lang.reflect.Field f = Class.forName(className).getDeclaredField(name);\n");
+		sb.append("\t\t\tf.setAccessible(true);\n");
+		sb.append("\t\t\treturn f;\n");
+		sb.append("\t\t}\n");
+		sb.append("\t\tcatch (ReflectiveOperationException roe) {\n");
+		sb.append("\t\t\tthrow new ExceptionInInitializerError(roe);\n");
+		sb.append("\t\t}\n");
+		sb.append("\t}\n\n");
+		sb.append("\tprivate static Object get(java.lang.reflect.Field f, Object o) {\n");
+		sb.append("\t\ttry {\n\t\t\treturn f.get(o);\n\t\t}\n");
+		sb.append("\t\tcatch (IllegalAccessException iae) {\n\t\t\tthrow new ConversionException(\"Cannot read \"+f, iae);\n\t\t}\n");
+		sb.append("\t}\n\n");
+		sb.append("\tprivate static void set(java.lang.reflect.Field f, Object o, Object value) {\n");
+		sb.append("\t\ttry {\n\t\t\tf.set(o, value);\n\t\t}\n");
+		sb.append("\t\tcatch (IllegalAccessException iae) {\n\t\t\tthrow new ConversionException(\"Cannot set \"+f, iae);\n\t\t}\n");
+		sb.append("\t}\n\n");
+		sb.append("}\n");
+
+		Writer w = processingEnv.getFiler().createSourceFile((pkg.length() > 0 ? pkg+"." : "")+generated, te).openWriter();
+		try {
+			w.write(sb.toString());
+		}
+		finally {
+			w.close();
+		}
+	}
+
+
+	/**
+	 * @return true if te is something a converter can be generated for. Reports an error otherwise
+	 */
+	private boolean check(TypeElement te) {
+		if (te.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(te, "@Marshalled class must not be abstract");
+			return false;
+		}
+		if ((te.getNestingKind() != NestingKind.TOP_LEVEL) && (! te.getModifiers().contains(Modifier.STATIC))) {
+			error(te, "@Marshalled nested class must be static");
+			return false;
+		}
+		TypeElement uiq = processingEnv.getElementUtils().getTypeElement(UNIVERSAL_IQ);
+		if ((uiq != null) && (! processingEnv.getTypeUtils().isSubtype(erasure(te.asType()), erasure(uiq.asType())))) {
+			error(te, "@Marshalled class must extend UniversalIQ");
+			return false;
+		}
+		for (ExecutableElement c : ElementFilter.constructorsIn(te.getEnclosedElements())) {
+			if (c.getParameters().isEmpty() && (! c.getModifiers().contains(Modifier.PRIVATE)))
+				return true;
+		}
+		error(te, "@Marshalled class needs a non-private no-argument constructor");
+		return false;
+	}
+
+	/**
+	 * @return the serialized fields of te, superclass fields first, or null if one can't be handled
+	 */
+	private List <Property> properties(TypeElement te, String pkg) {
+		ArrayList <TypeElement> hierarchy = new ArrayList <TypeElement> ();
+		for (TypeElement c = te; c != null; c = superclass(c)) {
+			String name = c.getQualifiedName().toString();
+			if (name.equals(UNIVERSAL_IQ) || name.equals("java.lang.Object"))
+				break;
+			hierarchy.add(0, c);
+		}
+
+		List <ExecutableElement> methods = ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(te));
+		ArrayList <Property> result = new ArrayList <Property> ();
+		HashSet <String> names = new HashSet <String> ();
+		for (TypeElement c : hierarchy) {
+			for (VariableElement f : ElementFilter.fieldsIn(c.getEnclosedElements())) {
+				Set <Modifier> mods = f.getModifiers();
+				if (mods.contains(Modifier.STATIC) || mods.contains(Modifier.TRANSIENT))
+					continue;
+				String name = f.getSimpleName().toString();
+				if (! names.add(name)) {
+					error(f, "Field "+name+" hides a superclass field of the same name, which @Marshalled doesn't support");
+					return null;
+				}
+				result.add(property(te, c, f, methods, pkg));
+			}
+		}
+		return result;
+	}
+
+	private Property property(TypeElement te, TypeElement declaring, VariableElement f, List <ExecutableElement> methods, String pkg) {
+		Property p = new Property();
+		TypeMirror type = erasure(f.asType());
+		p.name = f.getSimpleName().toString();
+		p.type = type.toString();
+		p.kind = type.getKind();
+		p.simple = p.kind.isPrimitive() || isSimple(p.type);
+
+		Set <Modifier> mods = f.getModifiers();
+		boolean visible = (! mods.contains(Modifier.PRIVATE)) && (mods.contains(Modifier.PUBLIC) || packageOf(declaring).equals(pkg));
+		ExecutableElement getter = null;
+		ExecutableElement setter = null;
+		for (ExecutableElement m : methods) {
+			if ((m.getModifiers().contains(Modifier.STATIC)) || (! accessible(m, pkg)))
+				continue;
+			String mName = m.getSimpleName().toString();
+			if (m.getParameters().isEmpty() && processingEnv.getTypeUtils().isSameType(erasure(m.getReturnType()), type) &&
+					(mName.equalsIgnoreCase("get"+p.name) || ((p.kind == TypeKind.BOOLEAN) && mName.equalsIgnoreCase("is"+p.name))))
+				getter = m;
+			if ((m.getParameters().size() == 1) && processingEnv.getTypeUtils().isSameType(erasure(m.getParameters().get(0).asType()), type) &&
+					mName.equalsIgnoreCase("set"+p.name))
+				setter = m;
+		}
+
+		if (visible)
+			p.read = "v."+p.name;
+		else if (getter != null)
+			p.read = "v."+getter.getSimpleName()+"()";
+		else
+			p.read = "("+boxed(p)+") get("+handle(p, declaring)+", v)";
+
+		if (visible && (! mods.contains(Modifier.FINAL)))
+			p.write = "v."+p.name+" = value;";
+		else if (setter != null)
+			p.write = "v."+setter.getSimpleName()+"(value);";
+		else
+			p.write = "set("+handle(p, declaring)+", v, value);";
+
+		if (p.fieldHandle != null)
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+					"@Marshalled "+te.getSimpleName()+": field "+p.name+" has no accessible accessors, so it is accessed through reflection", f);
+		return p;
+	}
+
+	private String handle(Property p, TypeElement declaring) {
+		if (p.fieldHandle == null) {
+			p.fieldHandle = "F_"+p.name;
+			p.declaringClass = processingEnv.getElementUtils().getBinaryName(declaring).toString();
+		}
+		return p.fieldHandle;
+	}
+
+	/**
+	 * @return the expression that turns reader.getValue() into a value of p's type
+	 */
+	private static String parse(Property p) {
+		if (! p.simple)
+			return "("+p.type+") context.convertAnother(v, readClass(reader, "+p.type+".class))";
+		String s = "reader.getValue()";
+		switch (p.kind) {
+		case BOOLEAN: return "Boolean.parseBoolean("+s+")";
+		case BYTE: return "Byte.parseByte("+s+")";
+		case SHORT: return "Short.parseShort("+s+")";
+		case INT: return "Integer.parseInt("+s+")";
+		case LONG: return "Long.parseLong("+s+")";
+		case FLOAT: return "Float.parseFloat("+s+")";
+		case DOUBLE: return "Double.parseDouble("+s+")";
+		case CHAR: return "(("+s+").length() > 0 ? ("+s+").charAt(0) : '\\0')";
+		default:
+			break;
+		}
+		if (p.type.equals("java.lang.String"))
+			return s;
+		if (p.type.equals("java.lang.Character"))
+			return "(("+s+").length() > 0 ? Character.valueOf(("+s+").charAt(0)) : Character.valueOf('\\0'))";
+		return p.type+".valueOf("+s+")"; // the wrappers
+	}
+
+	private static boolean isSimple(String type) {
+		return type.equals("java.lang.String") || type.equals("java.lang.Boolean") || type.equals("java.lang.Byte") ||
+			type.equals("java.lang.Short") || type.equals("java.lang.Integer") || type.equals("java.lang.Long") ||
+			type.equals("java.lang.Float") || type.equals("java.lang.Double") || type.equals("java.lang.Character");
+	}
+
+	private static String boxed(Property p) {
+		switch (p.kind) {
+		case BOOLEAN: return "Boolean";
+		case BYTE: return "Byte";
+		case SHORT: return "Short";
+		case INT: return "Integer";
+		case LONG: return "Long";
+		case FLOAT: return "Float";
+		case DOUBLE: return "Double";
+		case CHAR: return "Character";
+		default: return p.type;
+		}
+	}
+
+	private boolean accessible(Element e, String pkg) {
+		Set <Modifier> mods = e.getModifiers();
+		if (mods.contains(Modifier.PRIVATE))
+			return false;
+		return mods.contains(Modifier.PUBLIC) || packageOf(e.getEnclosingElement()).equals(pkg);
+	}
+
+	private String packageOf(Element e) {
+		PackageElement pe = processingEnv.getElementUtils().getPackageOf(e);
+		return pe.getQualifiedName().toString();
+	}
+
+	private TypeElement superclass(TypeElement te) {
+		TypeMirror sup = te.getSuperclass();
+		if (sup.getKind() != TypeKind.DECLARED)
+			return null;
+		return (TypeElement) processingEnv.getTypeUtils().asElement(sup);
+	}
+
+	private TypeMirror erasure(TypeMirror t) {
+		return processingEnv.getTypeUtils().erasure(t);
+	}
+
+	private void error(Element e, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, e);
+	}
+
+}
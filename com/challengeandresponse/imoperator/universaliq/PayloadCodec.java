@@ -0,0 +1,46 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * Turns a UniversalIQ's payload (the content of its query element) into text and back.
+ * Which codec a payload type is sent with is chosen per query namespace with PayloadCodecRegistry.setCodec().
+ * A payload sent with any codec but XStream carries the codec's name in a "codec" attribute on the query
+ * element, and UniversalIQProvider hands it to the codec registered under that name. So hot message types
+ * can move to a cheaper encoding while everything else stays as it was.
+ * <p>Implementations must be thread safe: one instance serves every connection.</p>
+ *
+ * @author jim
+ *
+ */
+public interface PayloadCodec {
+
+	/**
+	 * @return the name written in the query element's codec attribute. Must be unique among codecs, and legal in an XML attribute
+	 */
+	public String getName();
+
+	/**
+	 * Write the payload of iq: what goes between &lt;query ...&gt; and &lt;/query&gt;. The output is embedded in
+	 * the stanza as is, so anything that is not XML markup must be escaped.
+	 * @param iq the IQ to encode
+	 * @param out the destination
+	 * @throws IOException if out throws one
+	 */
+	public void encode(UniversalIQ iq, Writer out)
+	throws IOException;
+
+	/**
+	 * Read a payload written by encode()
+	 * @param parser positioned on the START_TAG of the query element. Must be left on its END_TAG
+	 * @param iqClass the class registered for the query's namespace
+	 * @return the decoded IQ
+	 * @throws Exception if the payload can't be decoded
+	 */
+	public UniversalIQ decode(XmlPullParser parser, Class <? extends UniversalIQ> iqClass)
+	throws Exception;
+
+}
@@ -0,0 +1,109 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which PayloadCodec each query namespace is sent with, and which codecs can be received.
+ * Namespaces without a codec set are sent with XStream, as they always have been, and with no codec attribute,
+ * so peers that know nothing of codecs still understand them. The JSON and deflate codecs are known by default; other
+ * codecs must be registered with registerCodec() (or setCodec()) at both ends before they are used.
+ * <p>The sender decides which codec a namespace uses. A receiver decodes any codec it has registered, whatever
+ * its own choice for the namespace, so peers can switch a namespace over one at a time.</p>
+ *
+ * @author jim
+ *
+ */
+public final class PayloadCodecRegistry {
+
+	/**
+	 * The name XStream-encoded payloads go by. They are sent without a codec attribute
+	 */
+	public static final String XSTREAM = "xstream";
+
+	/**
+	 * The JSON codec, known to every registry
+	 */
+	public static final PayloadCodec JSON = new JsonPayloadCodec();
+
+	private static final ConcurrentHashMap <String, PayloadCodec> codecsByName = new ConcurrentHashMap <String, PayloadCodec> ();
+	private static final ConcurrentHashMap <String, PayloadCodec> codecsByNamespace = new ConcurrentHashMap <String, PayloadCodec> ();
+
+	static {
+		registerCodec(JSON);
+		registerCodec(new DeflatePayloadCodec());
+	}
+
+	private PayloadCodecRegistry() {
+	}
+
+
+	/**
+	 * Make a codec available for decoding incoming payloads that name it.
+	 * Registering another instance of a codec class that is already registered under the same name does nothing.
+	 * @param codec the codec
+	 * @throws IllegalArgumentException if a codec of a different class is already registered under the same name
+	 */
+	public static void registerCodec(PayloadCodec codec) {
+		if (XSTREAM.equals(codec.getName()))
+			throw new IllegalArgumentException("The name "+XSTREAM+" is reserved");
+		PayloadCodec old = codecsByName.putIfAbsent(codec.getName(), codec);
+		if ((old != null) && (old.getClass() != codec.getClass()))
+			throw new IllegalArgumentException("A different codec is already registered as "+codec.getName());
+	}
+
+	/**
+	 * Send payloads in namespace with codec, and register the codec for decoding
+	 * @param namespace a query namespace
+	 * @param codec the codec, or null to go back to XStream
+	 */
+	public static void setCodec(String namespace, PayloadCodec codec) {
+		if (codec == null) {
+			codecsByNamespace.remove(namespace);
+			return;
+		}
+		registerCodec(codec);
+		codecsByNamespace.put(namespace, codec);
+	}
+
+	/**
+	 * Send payloads of iqClass with codec. Uses the class's namespace as it is now, so register any alias for
+	 * the class with UniversalIQRegistry first
+	 * @param iqClass a UniversalIQ subclass
+	 * @param codec the codec, or null to go back to XStream
+	 */
+	public static void setCodec(Class <? extends UniversalIQ> iqClass, PayloadCodec codec) {
+		setCodec(UniversalIQRegistry.getNamespace(iqClass), codec);
+	}
+
+	/**
+	 * @param namespace a query namespace
+	 * @return the codec to send payloads in namespace with, or null for XStream
+	 */
+	public static PayloadCodec getCodecFor(String namespace) {
+		return codecsByNamespace.get(namespace);
+	}
+
+	/**
+	 * @param name a codec name, as found in a codec attribute
+	 * @return the codec registered under name, or null if there isn't one
+	 */
+	public static PayloadCodec getCodec(String name) {
+		return codecsByName.get(name);
+	}
+
+	/**
+	 * @param namespace a query namespace: a short one registered with UniversalIQRegistry, or a class name
+	 * @return the UniversalIQ subclass the namespace stands for
+	 * @throws ClassNotFoundException if there is no such class, or it is not a UniversalIQ
+	 */
+	public static Class <? extends UniversalIQ> classForNamespace(String namespace)
+	throws ClassNotFoundException {
+		Class <?> c = UniversalIQRegistry.getIQClass(namespace);
+		if (c == null)
+			c = Class.forName(namespace);
+		if (! UniversalIQ.class.isAssignableFrom(c))
+			throw new ClassNotFoundException(namespace+" is not a UniversalIQ");
+		return c.asSubclass(UniversalIQ.class);
+	}
+
+}
@@ -0,0 +1,235 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.thoughtworks.xstream.converters.ErrorWriter;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.StreamException;
+
+/**
+ * Lets XStream read an object straight from the events of a live XmlPullParser, such as the one
+ * Smack hands to an IQProvider, instead of from a String rebuilt out of those events.
+ * Text and attribute values arrive already unescaped from the parser, and names are decoded the way
+ * XStream's own readers decode them ("_-" to "$", "__" to "_").
+ * <p>The parser must be positioned on the START_TAG of the element to read. The reader consumes
+ * events only as XStream asks for them, and never reads past the END_TAG of that element:
+ * call finish() after unmarshalling to make sure the parser has reached it.</p>
+ * <p>A node's attributes are copied when the reader moves onto it, so they stay readable after
+ * XStream has looked ahead at the node's children or value.</p>
+ *
+ * @author jim
+ *
+ */
+public class PullParserReader
+implements HierarchicalStreamReader {
+
+	private static final int NONE = -1;
+	private static final String[] NO_STRINGS = new String[0];
+
+	private static class Node {
+		final String name;
+		final String[] attributeNames;
+		final String[] attributeValues;
+		Node(String name, String[] attributeNames, String[] attributeValues) {
+			this.name = name;
+			this.attributeNames = attributeNames;
+			this.attributeValues = attributeValues;
+		}
+	}
+
+	private final XmlPullParser parser;
+	private final ArrayList <Node> path; // root first, current node last
+	private int pending; // START_TAG or END_TAG the parser is on but the reader hasn't moved to, or NONE
+	private final StringBuilder text; // text of the current node, up to the pending tag
+
+
+	/**
+	 * @param parser a parser positioned on the START_TAG of the element to read
+	 * @throws StreamException if the parser is not on a START_TAG
+	 */
+	public PullParserReader(XmlPullParser parser) {
+		this.parser = parser;
+		this.path = new ArrayList <Node> ();
+		this.pending = NONE;
+		this.text = new StringBuilder();
+		try {
+			if (parser.getEventType() != XmlPullParser.START_TAG)
+				throw new StreamException("PullParserReader must start on a START_TAG, not at "+parser.getPositionDescription());
+		}
+		catch (XmlPullParserException xppe) {
+			throw new StreamException(xppe);
+		}
+		enter();
+	}
+
+
+	/**
+	 * Copy the node the parser is on (a START_TAG) onto the path
+	 */
+	private void enter() {
+		int count = parser.getAttributeCount();
+		String[] names = (count > 0) ? new String[count] : NO_STRINGS;
+		String[] values = (count > 0) ? new String[count] : NO_STRINGS;
+		for (int i = 0; i < count; i++) {
+			names[i] = decode(parser.getAttributeName(i));
+			values[i] = parser.getAttributeValue(i);
+		}
+		path.add(new Node(decode(parser.getName()), names, values));
+		pending = NONE;
+		text.setLength(0);
+	}
+
+	/**
+	 * Advance the parser to the next START_TAG or END_TAG, collecting text on the way,
+	 * unless it is already on one the reader hasn't moved to
+	 * @return START_TAG or END_TAG
+	 */
+	private int peek() {
+		if (pending != NONE)
+			return pending;
+		try {
+			while (true) {
+				int eventType = parser.next();
+				switch (eventType) {
+				case XmlPullParser.START_TAG:
+				case XmlPullParser.END_TAG:
+					pending = eventType;
+					return eventType;
+				case XmlPullParser.TEXT:
+				case XmlPullParser.CDSECT:
+				case XmlPullParser.ENTITY_REF:
+					text.append(parser.getText());
+					break;
+				case XmlPullParser.END_DOCUMENT:
+					throw new StreamException("Unexpected end of document at "+parser.getPositionDescription());
+				default: // comments, processing instructions etc.
+					break;
+				}
+			}
+		}
+		catch (XmlPullParserException xppe) {
+			throw new StreamException(xppe);
+		}
+		catch (IOException ioe) {
+			throw new StreamException(ioe);
+		}
+	}
+
+	public boolean hasMoreChildren() {
+		return (peek() == XmlPullParser.START_TAG);
+	}
+
+	public void moveDown() {
+		if (peek() != XmlPullParser.START_TAG)
+			throw new StreamException("No more children of "+getNodeName()+" at "+parser.getPositionDescription());
+		enter();
+	}
+
+	public void moveUp() {
+		// skip whatever XStream didn't read of the current node, through its END_TAG
+		int depth = 0;
+		while (true) {
+			int eventType = peek();
+			pending = NONE;
+			if (eventType == XmlPullParser.START_TAG)
+				depth++;
+			else if (depth-- == 0)
+				break;
+		}
+		path.remove(path.size() - 1);
+		text.setLength(0);
+	}
+
+	/**
+	 * Move up through every node still open, so that the parser is left on the END_TAG of the element the
+	 * reader started on. Call this after XStream has finished, since it doesn't move up from the root.
+	 */
+	public void finish() {
+		while (! path.isEmpty())
+			moveUp();
+	}
+
+	public String getNodeName() {
+		return path.get(path.size() - 1).name;
+	}
+
+	/**
+	 * @return the text of the current node, up to its first child element if it has any
+	 */
+	public String getValue() {
+		peek();
+		return text.toString();
+	}
+
+	public String getAttribute(String name) {
+		Node n = path.get(path.size() - 1);
+		for (int i = 0; i < n.attributeNames.length; i++) {
+			if (n.attributeNames[i].equals(name))
+				return n.attributeValues[i];
+		}
+		return null;
+	}
+
+	public String getAttribute(int index) {
+		return path.get(path.size() - 1).attributeValues[index];
+	}
+
+	public int getAttributeCount() {
+		return path.get(path.size() - 1).attributeNames.length;
+	}
+
+	public String getAttributeName(int index) {
+		return path.get(path.size() - 1).attributeNames[index];
+	}
+
+	public Iterator <String> getAttributeNames() {
+		return Arrays.asList(path.get(path.size() - 1).attributeNames).iterator();
+	}
+
+	public void appendErrors(ErrorWriter errorWriter) {
+		errorWriter.add("line number", String.valueOf(parser.getLineNumber()));
+	}
+
+	public void close() {
+		// the parser belongs to the caller
+	}
+
+	public HierarchicalStreamReader underlyingReader() {
+		return this;
+	}
+
+
+	/**
+	 * Undo XStream's escaping of characters that aren't legal in XML names: "_-" is "$" and "__" is "_"
+	 */
+	static String decode(String name) {
+		if (name.indexOf('_') < 0)
+			return name;
+		StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if ((c == '_') && (i + 1 < name.length())) {
+				char next = name.charAt(i + 1);
+				if (next == '-') {
+					sb.append('$');
+					i++;
+					continue;
+				}
+				if (next == '_') {
+					sb.append('_');
+					i++;
+					continue;
+				}
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+}
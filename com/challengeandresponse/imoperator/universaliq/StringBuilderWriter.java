@@ -0,0 +1,66 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.io.Writer;
+
+/**
+ * An unsynchronized Writer that appends to a StringBuilder which is kept between uses, so
+ * that serializing one packet after another doesn't regrow a buffer from nothing every time.
+ * Not thread safe: UniversalIQ keeps one per thread.
+ *
+ * @author jim
+ *
+ */
+class StringBuilderWriter
+extends Writer {
+
+	private StringBuilder sb;
+	boolean inUse = false;
+
+	StringBuilderWriter(int capacity) {
+		this.sb = new StringBuilder(capacity);
+	}
+
+	public void write(int c) {
+		sb.append((char) c);
+	}
+
+	public void write(char[] cbuf, int off, int len) {
+		sb.append(cbuf, off, len);
+	}
+
+	public void write(String str) {
+		sb.append(str);
+	}
+
+	public void write(String str, int off, int len) {
+		sb.append(str, off, off + len);
+	}
+
+	public Writer append(CharSequence csq) {
+		sb.append(csq);
+		return this;
+	}
+
+	public void flush() {
+	}
+
+	public void close() {
+	}
+
+	/**
+	 * Empty the buffer for the next use. If an unusually large payload grew it beyond retainLimit
+	 * chars, it is dropped rather than held by the thread indefinitely.
+	 * @param retainLimit the largest capacity to keep
+	 */
+	void reset(int retainLimit) {
+		if (sb.capacity() > retainLimit)
+			sb = new StringBuilder(retainLimit / 4);
+		else
+			sb.setLength(0);
+	}
+
+	public String toString() {
+		return sb.toString();
+	}
+
+}
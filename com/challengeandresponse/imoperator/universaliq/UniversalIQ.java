@@ -1,9 +1,16 @@
 package com.challengeandresponse.imoperator.universaliq;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
 
 import com.challengeandresponse.universalxstream.UniversalXStream;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
 
 /**
  * Provides an implementation of IQ with automatic Object-to-XML provided by
@@ -25,11 +32,33 @@ import com.challengeandresponse.universalxstream.UniversalXStream;
  * REVISION HISTORY
  * 2007-03-23	Created
  * 2007-06.11	v0.11	Sets default type 'IQ.Type.SET' since the deprecated UniversalIQRPC used to do this
+ * 2026-10-17	Added getQueryNamespace(), for routing by namespace (see PacketRouter)
+ * 2026-10-17	Serializes compactly into a reused per-thread buffer, or straight into a Writer with writeChildElementXML()
+ * 2026-10-17	Supports lazy decoding: materialize(), isMaterialized() and getHeader()
+ * 2026-10-17	Short namespaces and aliases for classes registered with UniversalIQRegistry
+ * 2026-10-17	Payloads written with the codec chosen for their namespace in PayloadCodecRegistry
+ * 2026-10-17	Payloads that must be fetched before they can be unmarshalled (DedupPayloadCodec), and getDedupHash()
  */
 public abstract class UniversalIQ 
 extends IQ {
 	
 	private static transient UniversalXStream xstream = null;
+
+	// set on an IQ decoded lazily by UniversalIQProvider: its payload, not yet unmarshalled into its fields
+	private transient volatile String lazyPayload = null;
+	private transient XStream lazyXStream = null;
+	private transient Map <String, String> lazyHeaders = null;
+	private transient boolean materializing = false; // so that setters called while unmarshalling don't start over
+	private transient volatile Callable <String> lazySource = null; // fetches the payload, when it didn't come with the packet
+	private transient String dedupHash = null;
+
+	private static final int BUFFER_INITIAL_SIZE = 1024; // chars
+	private static final int BUFFER_RETAIN_LIMIT = 256 * 1024; // chars. Larger buffers are not kept between calls
+	private static final ThreadLocal <StringBuilderWriter> buffers = new ThreadLocal <StringBuilderWriter> () {
+		protected StringBuilderWriter initialValue() {
+			return new StringBuilderWriter(BUFFER_INITIAL_SIZE);
+		}
+	};
 	
 	static {
 		UniversalXStream.excludeClasses(Packet.class, IQ.class);
@@ -67,10 +96,160 @@ extends IQ {
 	
 
 	/**
-	 * Method required by the IQ interface... this outputs the object as XML
+	 * Method required by the IQ interface... this outputs the object as XML.
+	 * The XML is written compactly (no indenting) into a buffer that is reused by the calling thread,
+	 * so the only per-call copy of the payload is the returned String.
 	 */
 	public  String getChildElementXML() {
-		return "<query xmlns=\""+this.getClass().getName()+"\">\n"+xstream.toXML(this)+"\n</query>";
+		StringBuilderWriter buffer = buffers.get();
+		if (buffer.inUse) // called from inside another serialization on this thread
+			buffer = new StringBuilderWriter(BUFFER_INITIAL_SIZE);
+		buffer.inUse = true;
+		try {
+			writeChildElementXML(buffer);
+			return buffer.toString();
+		}
+		catch (IOException ioe) { // a StringBuilderWriter doesn't throw these
+			throw new IllegalStateException(ioe);
+		}
+		finally {
+			buffer.reset(BUFFER_RETAIN_LIMIT);
+			buffer.inUse = false;
+		}
+	}
+
+	/**
+	 * Stream the child element XML straight into out, without building it as a String first.
+	 * The payload is written with the codec set for this IQ's namespace in PayloadCodecRegistry, XStream by default
+	 * @param out the destination, e.g. the writer of an outgoing stanza
+	 * @throws IOException if out throws one
+	 */
+	public void writeChildElementXML(Writer out)
+	throws IOException {
+		if (lazySource != null) // nothing to write until it's fetched
+			materialize();
+		String namespace = getQueryNamespace();
+		out.write("<query xmlns=\"");
+		out.write(namespace);
+		String payload = lazyPayload;
+		PayloadCodec codec = PayloadCodecRegistry.getCodecFor(namespace);
+		if (payload != null) { // still exactly as received (in XStream's XML), so forwarding doesn't need to decode it
+			out.write("\">");
+			out.write(payload);
+		}
+		else if (codec != null) {
+			out.write("\" codec=\"");
+			out.write(codec.getName());
+			out.write("\">");
+			codec.encode(this, out);
+		}
+		else {
+			out.write("\">");
+			CompactWriter cw = new CompactWriter(out);
+			xstream.marshal(this, cw);
+			cw.flush();
+		}
+		out.write("</query>");
+	}
+
+
+	/**
+	 * Hold payload, to be unmarshalled into this object's fields on the first call to materialize().
+	 * Called by UniversalIQProvider in lazy mode.
+	 * @param payload the serialized object, compact XML
+	 * @param xs the XStream to unmarshal it with
+	 * @param headers leaf values read from the payload while it was captured, by path (e.g. "rpc/oid")
+	 */
+	void setLazyPayload(String payload, XStream xs, Map <String, String> headers) {
+		this.lazyXStream = xs;
+		this.lazyHeaders = headers;
+		this.lazyPayload = payload;
+	}
+
+	/**
+	 * Have the payload fetched by source, then unmarshalled into this object's fields, on the first call to materialize().
+	 * Called by DedupPayloadCodec for a reference to a payload it doesn't hold.
+	 * @param source returns the payload, compact XML
+	 * @param xs the XStream to unmarshal it with
+	 */
+	void setLazySource(Callable <String> source, XStream xs) {
+		this.lazyXStream = xs;
+		this.lazySource = source;
+	}
+
+	/**
+	 * Unmarshal the payload into this object's fields, if that hasn't been done yet.
+	 * Subclass getters for payload fields call this first: e.g. MMObject.getObject(), MMList.getList().
+	 * A decoding stage can also call it ahead of time, off the thread that received the packet.
+	 * Does nothing for an IQ that wasn't decoded lazily. If the payload has to be fetched first, this blocks until it is.
+	 * @throws IllegalStateException if the payload could not be fetched
+	 */
+	public final void materialize() {
+		if ((lazyPayload == null) && (lazySource == null))
+			return;
+		synchronized (this) {
+			if (((lazyPayload == null) && (lazySource == null)) || materializing)
+				return;
+			materializing = true;
+			try {
+				if (lazySource != null) {
+					try {
+						lazyPayload = lazySource.call();
+					}
+					catch (RuntimeException re) {
+						throw re;
+					}
+					catch (Exception e) {
+						throw new IllegalStateException("Could not fetch the payload of "+getPacketID()+" from "+getFrom(), e);
+					}
+					lazySource = null;
+				}
+				lazyXStream.fromXML(lazyPayload, this);
+				lazyPayload = null;
+				lazyXStream = null;
+			}
+			finally {
+				materializing = false;
+			}
+		}
+	}
+
+	/**
+	 * @return false if this IQ was decoded lazily and its payload hasn't been unmarshalled yet
+	 */
+	public boolean isMaterialized() {
+		return (lazyPayload == null) && (lazySource == null);
+	}
+
+	/**
+	 * Read one of the header values captured when this IQ was decoded lazily, without unmarshalling the payload.
+	 * Which paths are captured is set by UniversalIQProvider.setLazyHeaders()
+	 * @param path a leaf element under the payload's root, e.g. "oid", or "rpc/oid" for the oid of an RPC decoration
+	 * @return the value, or null if it wasn't captured (or this IQ wasn't decoded lazily)
+	 */
+	public String getHeader(String path) {
+		Map <String, String> headers = lazyHeaders;
+		return (headers != null) ? headers.get(path) : null;
+	}
+
+	/**
+	 * @return the content hash this IQ's payload was cached under when it arrived in full through DedupPayloadCodec,
+	 * to be confirmed to its sender (see DedupChannel); otherwise null
+	 */
+	public String getDedupHash() {
+		return dedupHash;
+	}
+
+	void setDedupHash(String hash) {
+		this.dedupHash = hash;
+	}
+
+	/**
+	 * @return the namespace of this IQ's query element: the name of its class, or a short
+	 * namespace if the class is registered with UniversalIQRegistry
+	 */
+	public String getQueryNamespace() {
+		return UniversalIQRegistry.getNamespace(this.getClass());
 	}
 	
 	
@@ -1,12 +1,19 @@
 package com.challengeandresponse.imoperator.universaliq;
 
-import java.util.Vector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.provider.IQProvider;
 import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
 
 /**
  * This UniversalIQProvider supports "query" and "result" IQ packets.
@@ -16,6 +23,10 @@ import com.thoughtworks.xstream.XStream;
  * Specifically, all types supported by XStream will work, as XStream is the 
  * inner core that makes this work.
  * </p>
+ * <p>UniversalIQRegistry.registerProviders(provider) binds a provider for every class registered there.</p>
+ * <p>A query element with a codec attribute holds a payload written by some other PayloadCodec, and is handed
+ * to the codec registered under that name in PayloadCodecRegistry. Such payloads are decoded eagerly, except a
+ * DedupPayloadCodec reference that misses its cache, which is fetched when the IQ is materialized.</p>
  * <p>TODO There SHOULD BE a separate UniversalIQErrorProvider specifically for handling Error responses.</p>
  * 
  * @author jim
@@ -23,87 +34,165 @@ import com.thoughtworks.xstream.XStream;
  */
 public class UniversalIQProvider implements IQProvider {
 
+	/**
+	 * The header paths captured by default in lazy mode: the RPC fields of a UniversalIQRPC, and of an RPC decoration
+	 */
+	public static final String[] DEFAULT_LAZY_HEADERS = {
+		"methodName", "priority", "creator", "oid",
+		"rpc/methodName", "rpc/priority", "rpc/creator", "rpc/oid"
+	};
+
 	private XStream xstream;
-	
-	private static final Vector <String> iqTypes;
-	static {
-		iqTypes = new Vector <String> ();
-		iqTypes.add("query");
-		iqTypes.add("result");
-	}
+	private volatile boolean lazy;
+	private volatile Set <String> lazyHeaders;
 
+	/**
+	 * Make a provider that shares UniversalIQ's XStream, so it knows the aliases registered with UniversalIQRegistry
+	 */
 	public UniversalIQProvider() {
 		super();
-		this.xstream = new XStream();
+		this.xstream = UniversalIQ.getXStreamInstance();
+		this.lazy = false;
+		this.lazyHeaders = new HashSet <String> (Arrays.asList(DEFAULT_LAZY_HEADERS));
 	}
 
 	
 	public void setXStream(XStream xs) {
 		this.xstream = xs;
 	}
-	
+
+	/**
+	 * In lazy mode, the provider doesn't unmarshal an incoming UniversalIQ's payload. It makes an empty
+	 * instance of the IQ's class holding the payload XML, and the payload is unmarshalled into it on the
+	 * first call to a getter that needs it, e.g. MMObject.getObject() or MMList.getList(). So a packet that
+	 * no listener wants, or that a listener only routes by namespace or header, never pays for
+	 * building its object graph. Off (eager) by default.
+	 * <p>Getters of UniversalIQ subclasses other than MMObject, MMList and UniversalIQRPC must call
+	 * materialize() before reading their fields, or they will see the fields unset.</p>
+	 * @param setting true for lazy decoding
+	 */
+	public void setLazy(boolean setting) {
+		this.lazy = setting;
+	}
+
+	/**
+	 * Set which leaf values are copied out of a payload as it is captured in lazy mode,
+	 * to be read with UniversalIQ.getHeader() without unmarshalling the payload
+	 * @param paths element names under the payload's root ("oid"), or under its children ("rpc/oid")
+	 */
+	public void setLazyHeaders(String... paths) {
+		this.lazyHeaders = new HashSet <String> (Arrays.asList(paths));
+	}
+
+	/**
+	 * @return true for the wrapper elements around the serialized object, which XStream doesn't see
+	 */
+	private static boolean isWrapper(String name) {
+		return "query".equals(name) || "result".equals(name);
+	}
+
 	/**
-	 * This rebuilds the original XML then calls XStream to reconstitute the 
-	 * original object. Skips over inital "query" tags.
+	 * XStream reconstitutes the original object straight from the parser's events, through
+	 * a PullParserReader: the XML is not rebuilt as a String first. Skips over initial
+	 * "query" (and "result") tags.
 	 */
 	/*
-	 * NOTE: in the loop below, the parser handed it is already positioned on 
-	 * the first event... which is the START_DOCUMENT event. The loop at the TOP
-	 * (rather than the bottom) calls parser.next() so this event is blown out
-	 * and never seen. Also it may seem disturbing that parser.next() is called
-	 * at the top when the while() is testing for something that it may turn up,
-	 * and that would normally stop BEFORE that next thing is processed...
-	 * however this is ok as there are no conditions within the while that 
-	 * do anything to the END_DOCUMENT tag... so the END_DOCUMENT event is 
-	 * encountered by next()... the if's below all fail, and we come back around
-	 * to while() where the loop terminates... if it even gets that far.
-	 * Note that this is will terminate when a match for the 
-	 * opening tag is encountered at the bottom.
-	 * The outer "query" tag is just plainly ignored, because XSTREAM demands that
-	 * the first tag name be its clue to the kind of object to reconstitute. I'm cool with that.
-	 * Also, the XStream API requires that the pointer be on the END_DOCUMENT event
-	 * when parseIQ terminates.
+	 * Smack hands over the parser positioned on the START_TAG of the IQ's child element (the "query").
+	 * The wrapper is skipped because XSTREAM demands that the first tag name be its clue to the kind
+	 * of object to reconstitute. I'm cool with that.
+	 * When parseIQ returns, the parser is on the END_TAG of the element it started on, which is where
+	 * Smack expects an IQProvider to leave it.
 	 */
 	public IQ parseIQ(XmlPullParser parser) throws Exception {
-		StringBuilder sb = new StringBuilder();
+		String codecName = (parser.getEventType() == XmlPullParser.START_TAG) ? getCodecAttribute(parser) : null;
+		if ((codecName != null) && (! PayloadCodecRegistry.XSTREAM.equals(codecName))) {
+			PayloadCodec codec = PayloadCodecRegistry.getCodec(codecName);
+			if (codec == null)
+				throw new XmlPullParserException("No payload codec registered as "+codecName+" at "+parser.getPositionDescription());
+			return codec.decode(parser, PayloadCodecRegistry.classForNamespace(parser.getNamespace()));
+		}
+
+		int wrapperDepth = (parser.getEventType() == XmlPullParser.START_TAG) ? parser.getDepth() : -1;
 		int eventType = parser.getEventType();
-		String firstTag = "";
-		String currentNamespace = "";
-		while (eventType != XmlPullParser.END_DOCUMENT) {
-			eventType = parser.next(); // this blows out the first event, which is START_DOCUMENT and we don't care
-			if (eventType == XmlPullParser.START_TAG) {
-				if (iqTypes.contains(parser.getName())) // the type tag at start or end is not processed
-					continue;
-				if (firstTag.length() < 1)
-					firstTag = parser.getName();
-				// attach the opening tag but leave it open
-				sb.append("<"+parser.getName());
-				// then read in and add all its attributes
-				int attCount = parser.getAttributeCount();
-				for (int i = 0; i < attCount; i++) {
-					sb.append(" "+parser.getAttributeName(i));
-					sb.append("=\""+parser.getAttributeValue(i)+"\"");
-				}
-				// if it's in a different namespace, copy that into the opening tag too
-				if (parser.getNamespace() != currentNamespace) {
-					currentNamespace = parser.getNamespace();
-					sb.append(" xmlns=\""+currentNamespace+"\"");
-				}
-				// finally close the opening tag
-				sb.append(">");
-			} else if(eventType == XmlPullParser.END_TAG) {
-				if (iqTypes.contains(parser.getName()))
-					continue;
-				sb.append("</"+parser.getName()+">");
-				if (parser.getName().equals(firstTag))
-					break;
-			} else if(eventType == XmlPullParser.TEXT) {
-				sb.append(parser.getText());
-			}
-        }
-		
+		while ((eventType != XmlPullParser.START_TAG) || isWrapper(parser.getName())) {
+			if ((eventType == XmlPullParser.END_DOCUMENT) || ((eventType == XmlPullParser.END_TAG) && (parser.getDepth() <= wrapperDepth)))
+				throw new XmlPullParserException("No object found in IQ at "+parser.getPositionDescription());
+			eventType = parser.next();
+		}
+
+		PullParserReader reader = new PullParserReader(parser);
+		IQ result = lazy ? capture(reader) : (IQ) xstream.unmarshal(reader);
+		reader.finish();
 
-		return(IQ) xstream.fromXML(sb.toString());
+		// and on through the end of the wrapper(s)
+		if (wrapperDepth > 0) {
+			while ((parser.getEventType() != XmlPullParser.END_TAG) || (parser.getDepth() > wrapperDepth))
+				parser.next();
+		}
+		return result;
+	}
+
+
+	/**
+	 * @return the codec attribute of the query element the parser is on, or null if it has none (an XStream payload)
+	 */
+	private static String getCodecAttribute(XmlPullParser parser) {
+		int count = parser.getAttributeCount();
+		for (int i = 0; i < count; i++) {
+			if ("codec".equals(parser.getAttributeName(i)))
+				return parser.getAttributeValue(i);
+		}
+		return null;
+	}
+
+	/**
+	 * Lazy mode: copy the payload as compact XML, picking out its headers on the way, and attach it
+	 * to an empty instance of its class
+	 */
+	private IQ capture(PullParserReader reader) {
+		Class <?> payloadClass = xstream.getMapper().realClass(reader.getNodeName());
+		StringBuilderWriter payload = new StringBuilderWriter(1024);
+		CompactWriter writer = new CompactWriter(payload);
+		Map <String, String> headers = new HashMap <String, String> ();
+		copy(reader, writer, 0, null, headers);
+		writer.flush();
+		if (! UniversalIQ.class.isAssignableFrom(payloadClass)) // nothing to defer the fields of
+			return (IQ) xstream.fromXML(payload.toString());
+		// made the way XStream makes it, i.e. without running a constructor
+		UniversalIQ iq = (UniversalIQ) xstream.getReflectionProvider().newInstance(payloadClass);
+		iq.setLazyPayload(payload.toString(), xstream, headers);
+		return iq;
+	}
+
+	/**
+	 * Copy the reader's current node and everything under it to writer
+	 * @param depth 0 for the payload's root, 1 for its children, etc.
+	 * @param path the node's path below the root if it could be a header (depth 1 or 2), otherwise null
+	 */
+	private void copy(PullParserReader reader, HierarchicalStreamWriter writer, int depth, String path, Map <String, String> headers) {
+		writer.startNode(reader.getNodeName());
+		int count = reader.getAttributeCount();
+		for (int i = 0; i < count; i++)
+			writer.addAttribute(reader.getAttributeName(i), reader.getAttribute(i));
+		if (reader.hasMoreChildren()) {
+			while (reader.hasMoreChildren()) {
+				reader.moveDown();
+				String childPath = null;
+				if (depth == 0)
+					childPath = reader.getNodeName();
+				else if (depth == 1)
+					childPath = path+"/"+reader.getNodeName();
+				copy(reader, writer, depth + 1, childPath, headers);
+				reader.moveUp();
+			}
+		}
+		else {
+			String value = reader.getValue();
+			writer.setValue(value);
+			if ((path != null) && lazyHeaders.contains(path))
+				headers.put(path, value);
+		}
+		writer.endNode();
 	}
 
 }
@@ -0,0 +1,174 @@
+package com.challengeandresponse.imoperator.universaliq;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.smack.provider.IQProvider;
+import org.jivesoftware.smack.provider.ProviderManager;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.mapper.Mapper;
+
+/**
+ * Short, stable wire names for UniversalIQ subclasses and the types in their fields.
+ * Unregistered, a payload is tagged with full class names: the query namespace is the IQ's class name,
+ * and XStream names the root element, and any field whose value's class differs from the declared type,
+ * by class name too. Registered, they get the alias instead, and the namespace becomes NAMESPACE_PREFIX+alias.
+ * <p>Registration configures the one XStream shared by UniversalIQ (for sending) and UniversalIQProvider
+ * (for receiving), and looks up each registered type's converter, and the converters of its fields' types,
+ * so that XStream's caches are filled before the first packet rather than during it. A converter generated
+ * for the type at compile time (see Marshalled) is installed as well.</p>
+ * <p>Both ends must register the same aliases, e.g. in a static block that runs at startup. Payloads that
+ * arrive under the full class names are still understood, so a peer that hasn't registered can send
+ * to one that has. Register before sending anything: changing the aliases of a type in use is refused.</p>
+ *
+ * @author jim
+ *
+ */
+public final class UniversalIQRegistry {
+
+	public static final String NAMESPACE_PREFIX = "urn:imo:";
+
+	private static final ConcurrentHashMap <Class <?>, String> aliases = new ConcurrentHashMap <Class <?>, String> ();
+	private static final ConcurrentHashMap <String, Class <?>> aliasedClasses = new ConcurrentHashMap <String, Class <?>> ();
+	private static final ConcurrentHashMap <Class <?>, String> namespaces = new ConcurrentHashMap <Class <?>, String> ();
+	private static final ConcurrentHashMap <String, Class <?>> iqClasses = new ConcurrentHashMap <String, Class <?>> ();
+
+	private UniversalIQRegistry() {
+	}
+
+
+	/**
+	 * Register a UniversalIQ subclass under alias. Its query namespace becomes NAMESPACE_PREFIX+alias, and its root element is named alias
+	 * @param iqClass the class
+	 * @param alias a short name, unique among all registered classes and types, that is legal as an XML element name
+	 * @throws IllegalArgumentException if the class or the alias is already registered differently
+	 */
+	public static synchronized void register(Class <? extends UniversalIQ> iqClass, String alias) {
+		registerType(iqClass, alias);
+		String namespace = NAMESPACE_PREFIX+alias;
+		namespaces.put(iqClass, namespace);
+		iqClasses.put(namespace, iqClass);
+	}
+
+	/**
+	 * Register a type that appears in payloads, e.g. the class of the object in an MMObject, or of the elements of an MMList
+	 * @param type the class
+	 * @param alias a short name, unique among all registered classes and types, that is legal as an XML element name
+	 * @throws IllegalArgumentException if the type or the alias is already registered differently
+	 */
+	public static synchronized void registerType(Class <?> type, String alias) {
+		String oldAlias = aliases.get(type);
+		Class <?> oldClass = aliasedClasses.get(alias);
+		if (alias.equals(oldAlias))
+			return;
+		if (oldAlias != null)
+			throw new IllegalArgumentException(type.getName()+" is already registered as "+oldAlias);
+		if (oldClass != null)
+			throw new IllegalArgumentException("Alias "+alias+" is already registered for "+oldClass.getName());
+		XStream xs = UniversalIQ.getXStreamInstance();
+		xs.alias(alias, type);
+		aliases.put(type, alias);
+		aliasedClasses.put(alias, type);
+		useGeneratedMarshaller(type);
+		warmUp(xs, type);
+	}
+
+	/**
+	 * Install the converter generated for type by MarshallerProcessor (see Marshalled), if there is one, in UniversalIQ's XStream.
+	 * register() and registerType() call this.
+	 * @param type a class
+	 * @return true if a generated converter was found
+	 */
+	public static boolean useGeneratedMarshaller(Class <?> type) {
+		return loadGeneratedMarshaller(UniversalIQ.getXStreamInstance(), type);
+	}
+
+	/**
+	 * Install the converter generated for type by MarshallerProcessor, if there is one, in xs
+	 * @param xs an XStream
+	 * @param type a class
+	 * @return true if a generated converter was found
+	 * @throws IllegalStateException if the converter class exists but can't be instantiated
+	 */
+	public static boolean loadGeneratedMarshaller(XStream xs, Class <?> type) {
+		Class <?> marshallerClass;
+		try {
+			marshallerClass = Class.forName(type.getName()+MarshallerProcessor.SUFFIX, true, type.getClassLoader());
+		}
+		catch (ClassNotFoundException cnfe) {
+			return false;
+		}
+		try {
+			Converter c = (Converter) marshallerClass.getConstructor(Mapper.class).newInstance(xs.getMapper());
+			xs.registerConverter(c, XStream.PRIORITY_VERY_HIGH);
+			return true;
+		}
+		catch (ReflectiveOperationException roe) {
+			throw new IllegalStateException("Could not instantiate "+marshallerClass.getName(), roe);
+		}
+	}
+
+	/**
+	 * @param iqClass a UniversalIQ subclass
+	 * @return the query namespace for iqClass: NAMESPACE_PREFIX+alias if it is registered, otherwise its class name
+	 */
+	public static String getNamespace(Class <?> iqClass) {
+		String namespace = namespaces.get(iqClass);
+		return (namespace != null) ? namespace : iqClass.getName();
+	}
+
+	/**
+	 * @param type a class
+	 * @return the alias of type, or null if it is not registered
+	 */
+	public static String getAlias(Class <?> type) {
+		return aliases.get(type);
+	}
+
+	/**
+	 * @param namespace a query namespace
+	 * @return the UniversalIQ subclass registered for namespace, or null if there isn't one
+	 */
+	public static Class <?> getIQClass(String namespace) {
+		return iqClasses.get(namespace);
+	}
+
+	/**
+	 * Bind provider with Smack's ProviderManager for every registered UniversalIQ subclass, under both its short
+	 * namespace and its class name (which unregistered peers send). Call again after registering more classes.
+	 * @param provider the provider, normally a UniversalIQProvider
+	 */
+	public static void registerProviders(IQProvider provider) {
+		ProviderManager pm = ProviderManager.getInstance();
+		for (Class <?> c : namespaces.keySet()) {
+			pm.addIQProvider("query", namespaces.get(c), provider);
+			pm.addIQProvider("query", c.getName(), provider);
+		}
+	}
+
+
+	/**
+	 * Fill XStream's converter and name caches for type and the types of its serialized fields,
+	 * up to (not including) UniversalIQ, whose inherited fields are not serialized
+	 */
+	private static void warmUp(XStream xs, Class <?> type) {
+		xs.getMapper().serializedClass(type);
+		xs.getConverterLookup().lookupConverterForType(type);
+		for (Class <?> c = type; (c != null) && (c != UniversalIQ.class) && (c != Object.class); c = c.getSuperclass()) {
+			for (Field f : c.getDeclaredFields()) {
+				int modifiers = f.getModifiers();
+				if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers))
+					continue;
+				xs.getMapper().serializedMember(c, f.getName());
+				Class <?> fieldType = xs.getMapper().defaultImplementationOf(f.getType());
+				// an interface or abstract type's converter depends on the class of the value, so it can't be looked up yet
+				if (fieldType.isPrimitive() || ((! fieldType.isInterface()) && (! Modifier.isAbstract(fieldType.getModifiers()))))
+					xs.getConverterLookup().lookupConverterForType(fieldType);
+			}
+		}
+	}
+
+}